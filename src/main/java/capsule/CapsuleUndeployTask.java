@@ -0,0 +1,290 @@
+package capsule;
+
+import capsule.helpers.BlockSet;
+import capsule.structure.CapsuleBlockWriter;
+import capsule.structure.CapsuleTaskScheduler;
+import capsule.structure.CapsuleTemplate;
+import capsule.structure.CapsuleTemplateCapture;
+import capsule.structure.CapsuleTemplateManager;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.init.Blocks;
+import net.minecraft.item.ItemStack;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.text.TextComponentTranslation;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.gen.structure.StructureBoundingBox;
+import net.minecraft.world.gen.structure.template.Template;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Captures a region into a template over several ticks: the blocks are snapshotted layer by layer, the template is written
+ * in background, then the blocks are removed from the world slice by slice.
+ * A block that changed since it was snapshotted, or that the player can't remove, stays in the world and is dropped from the template.
+ * Tile entities data is read again when the block is removed so that the template holds their last state.
+ *
+ * @author Lythom
+ */
+class CapsuleUndeployTask implements CapsuleTaskScheduler.Task {
+
+    protected static final Logger LOGGER = LogManager.getLogger(CapsuleUndeployTask.class);
+
+    private static final int STAGE_CAPTURE = 0;
+    private static final int STAGE_REMOVE = 1;
+    private static final int STAGE_DONE = 2;
+
+    /**
+     * Number of blocks removed with tile drops disabled at once.
+     */
+    private static final int REMOVE_SLICE = 64;
+
+    private final WorldServer world;
+    @Nullable
+    private final String playerID;
+    private final CapsuleTemplateManager templateManager;
+    private final String capsuleStructureId;
+    private final BlockPos startPos;
+    private final BlockPos endPos;
+    private final int size;
+    @Nullable
+    private final ItemStack capsule;
+    private final Consumer<CapsuleTemplate> onDone;
+
+    private final StructureBoundingBox region;
+    private final CapsuleTemplateCapture capture;
+    private final CapsuleBlockWriter blockWriter;
+    /** relative positions of the blocks to drop from the template */
+    private final LongOpenHashSet notRemoved = new LongOpenHashSet();
+    /** blocks whose tile entity data was read again when removed, by relative position */
+    private final Long2ObjectOpenHashMap<Template.BlockInfo> refreshedBlocks = new Long2ObjectOpenHashMap<>();
+
+    /** indices of the captured blocks in removal order */
+    private int[] removalOrder;
+    private int stage = STAGE_CAPTURE;
+    private int index = 0;
+    private int lastReportedPercent = -1;
+
+    CapsuleUndeployTask(WorldServer world, @Nullable String playerID, CapsuleTemplateManager templateManager, String capsuleStructureId,
+                        BlockPos startPos, int size, BlockSet excluded, @Nullable Map<BlockPos, Block> occupiedPositions,
+                        @Nullable ItemStack capsule, Consumer<CapsuleTemplate> onDone) {
+        this.world = world;
+        this.playerID = playerID;
+        this.templateManager = templateManager;
+        this.capsuleStructureId = capsuleStructureId;
+        this.startPos = startPos;
+        this.size = size;
+        this.capsule = capsule;
+        this.onDone = onDone;
+        this.endPos = startPos.add(size - 1, size - 1, size - 1);
+        this.region = new StructureBoundingBox(startPos, endPos);
+        this.capture = new CapsuleTemplateCapture(world, startPos, endPos, occupiedPositions, excluded);
+        this.blockWriter = CapsuleBlockWriter.forOperation(world, CapsuleBlockWriter.OPERATION_UNDEPLOY);
+    }
+
+    @Override
+    public World getWorld() {
+        return world;
+    }
+
+    @Override
+    public StructureBoundingBox getRegion() {
+        return region;
+    }
+
+    @Nullable
+    @Override
+    public ItemStack getCapsule() {
+        return capsule;
+    }
+
+    @Override
+    public boolean run(long budgetNanos) {
+        long start = System.nanoTime();
+        do {
+            switch (stage) {
+                case STAGE_CAPTURE:
+                    if (capture.captureLayers(1)) {
+                        writeCapturedBlocks();
+                    }
+                    break;
+                case STAGE_REMOVE:
+                    removeSlice();
+                    if (index >= capture.getCapturedPositions().size()) {
+                        complete();
+                    }
+                    break;
+                default:
+                    stage = STAGE_DONE;
+            }
+        } while (stage != STAGE_DONE && System.nanoTime() - start <= budgetNanos);
+
+        if (stage != STAGE_DONE) reportProgress();
+        return stage == STAGE_DONE;
+    }
+
+    @Override
+    public void onFailure(Exception e) {
+        EntityPlayer player = getPlayer();
+        StructureSaver.printDeployError(player, e, "Couldn't capture the capsule content");
+        if (stage == STAGE_REMOVE) {
+            // the template is written already: keep in it what was removed from the world
+            List<Template.BlockInfo> capturedBlocks = capture.getCapturedBlocks();
+            for (int i = index; i < removalOrder.length; i++) {
+                notRemoved.add(capturedBlocks.get(removalOrder[i]).pos.toLong());
+            }
+            try {
+                complete();
+                return;
+            } catch (Exception err) {
+                LOGGER.error("Couldn't save the partially captured content of " + capsuleStructureId, err);
+            }
+        }
+        stage = STAGE_DONE;
+        onDone.accept(null);
+    }
+
+    /**
+     * Put the snapshot in the template and write it, before anything is removed from the world.
+     */
+    private void writeCapturedBlocks() {
+        MinecraftServer server = world.getMinecraftServer();
+        ResourceLocation location = new ResourceLocation(capsuleStructureId);
+        CapsuleTemplate template = templateManager.getMutableTemplate(server, location);
+        capture.applyTo(template);
+        template.size = new BlockPos(size, size, size);
+        template.snapshotNonLivingEntitiesFromWorld(world, startPos, endPos.add(1, 1, 1));
+        template.removeOccupiedPositions();
+        if (playerID != null) template.setAuthor(playerID);
+        if (templateManager.writeTemplate(server, location)) {
+            removalOrder = removalOrder(capture.getCapturedBlocks());
+            stage = STAGE_REMOVE;
+        } else {
+            StructureSaver.printWriteTemplateError(getPlayer(), capsuleStructureId);
+            stage = STAGE_DONE;
+            onDone.accept(null);
+        }
+    }
+
+    private void removeSlice() {
+        EntityPlayer player = getPlayer();
+        List<BlockPos> positions = capture.getCapturedPositions();
+        List<Template.BlockInfo> capturedBlocks = capture.getCapturedBlocks();
+        int end = Math.min(index + REMOVE_SLICE, positions.size());
+
+        // disable tileDrop during the operation so that broken block are not itemized on the ground.
+        boolean flagdoTileDrops = world.getGameRules().getBoolean("doTileDrops");
+        world.getGameRules().setOrCreateGameRule("doTileDrops", "false");
+        world.restoringBlockSnapshots = true;
+        try {
+            for (; index < end; index++) {
+                int i = removalOrder[index];
+                removeBlock(positions.get(i), capturedBlocks.get(i), player);
+            }
+            blockWriter.flush();
+        } finally {
+            // revert rule to previous value even in case of crash
+            world.restoringBlockSnapshots = false;
+            world.getGameRules().setOrCreateGameRule("doTileDrops", String.valueOf(flagdoTileDrops));
+        }
+    }
+
+    /**
+     * Blocks needing a support are removed first, then tile entities, then full blocks, so that nothing breaks
+     * because its support was removed before it.
+     */
+    private static int[] removalOrder(List<Template.BlockInfo> capturedBlocks) {
+        int[] order = new int[capturedBlocks.size()];
+        int n = 0;
+        for (int pass = 0; pass < 3; pass++) {
+            for (int i = 0; i < capturedBlocks.size(); i++) {
+                Template.BlockInfo blockInfo = capturedBlocks.get(i);
+                int category = blockInfo.tileentityData != null ? 1 : !blockInfo.blockState.isFullBlock() && !blockInfo.blockState.isFullCube() ? 0 : 2;
+                if (category == pass) order[n++] = i;
+            }
+        }
+        return order;
+    }
+
+    private void removeBlock(BlockPos pos, Template.BlockInfo captured, EntityPlayer player) {
+        IBlockState b = world.getBlockState(pos);
+        try {
+            // the block changed since it was snapshotted, or can't be removed: leave it in the world
+            if (b != captured.blockState || !StructureSaver.playerCanRemove(world, pos, player)) {
+                notRemoved.add(captured.pos.toLong());
+                return;
+            }
+            if (captured.tileentityData != null) {
+                TileEntity tileentity = world.getTileEntity(pos);
+                if (tileentity != null) {
+                    refreshedBlocks.put(captured.pos.toLong(), new Template.BlockInfo(captured.pos, b, CapsuleTemplateCapture.writeTileEntity(tileentity)));
+                }
+            }
+            blockWriter.setBlockState(pos, Blocks.AIR.getDefaultState(), 3);
+        } catch (Exception e) {
+            StructureSaver.printDeployError(player, e, "Block crashed during Capsule capture phase : couldn't be removed. Will be ignored.");
+            try {
+                world.setBlockState(pos, b);
+            } catch (Exception ignored) {
+            }
+            notRemoved.add(captured.pos.toLong());
+        }
+    }
+
+    /**
+     * Remove the entities and write the template as it is in the end.
+     */
+    private void complete() {
+        MinecraftServer server = world.getMinecraftServer();
+        ResourceLocation location = new ResourceLocation(capsuleStructureId);
+        // the template may have been reloaded since the capture, blocks are matched by position
+        CapsuleTemplate template = templateManager.getMutableTemplate(server, location);
+        List<Entity> capturedEntities = template.snapshotNonLivingEntitiesFromWorld(world, startPos, endPos.add(1, 1, 1));
+        if (capturedEntities != null) {
+            for (Entity e : capturedEntities) {
+                e.setDropItemsWhenDead(false);
+                e.setDead();
+            }
+        }
+        if (!notRemoved.isEmpty()) {
+            template.blocks.removeIf(blockInfo -> notRemoved.contains(blockInfo.pos.toLong()));
+        }
+        if (!refreshedBlocks.isEmpty()) {
+            template.blocks.replaceAll(blockInfo -> refreshedBlocks.getOrDefault(blockInfo.pos.toLong(), blockInfo));
+        }
+        templateManager.writeTemplate(server, location);
+        stage = STAGE_DONE;
+        onDone.accept(template);
+    }
+
+    private void reportProgress() {
+        EntityPlayer player = getPlayer();
+        if (player == null) return;
+        float progress = stage == STAGE_CAPTURE
+                ? 0.3f * capture.getProgress()
+                : 0.3f + 0.7f * index / Math.max(1, capture.getCapturedPositions().size());
+        int percent = (int) (progress * 100);
+        if (percent != lastReportedPercent) {
+            lastReportedPercent = percent;
+            player.sendStatusMessage(new TextComponentTranslation("capsule.progress.capture", percent), true);
+        }
+    }
+
+    @Nullable
+    private EntityPlayer getPlayer() {
+        return playerID == null ? null : world.getPlayerEntityByName(playerID);
+    }
+}
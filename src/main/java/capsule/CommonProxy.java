@@ -8,12 +8,15 @@ import capsule.items.CapsuleItems;
 import capsule.loot.CapsuleLootTableHook;
 import capsule.loot.StarterLoot;
 import capsule.network.*;
-import capsule.network.client.CapsuleContentPreviewAnswerHandler;
+import capsule.network.client.CapsulePreviewFragmentHandler;
+import capsule.network.client.CapsulePreviewInvalidateHandler;
 import capsule.network.client.CapsuleUndeployNotifHandler;
 import capsule.network.server.CapsuleContentPreviewQueryHandler;
 import capsule.network.server.CapsuleLeftClickQueryHandler;
 import capsule.network.server.CapsuleThrowQueryHandler;
 import capsule.network.server.LabelEditedMessageToServerHandler;
+import capsule.structure.CapsuleTaskScheduler;
+import capsule.structure.CapsuleTemplateWriter;
 import net.minecraft.block.Block;
 import net.minecraft.enchantment.Enchantment;
 import net.minecraft.entity.player.EntityPlayer;
@@ -22,11 +25,13 @@ import net.minecraft.item.crafting.IRecipe;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.common.config.Configuration;
 import net.minecraftforge.event.RegistryEvent;
+import net.minecraftforge.event.world.WorldEvent;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.common.event.FMLInitializationEvent;
 import net.minecraftforge.fml.common.event.FMLPostInitializationEvent;
 import net.minecraftforge.fml.common.event.FMLPreInitializationEvent;
 import net.minecraftforge.fml.common.event.FMLServerStartingEvent;
+import net.minecraftforge.fml.common.event.FMLServerStoppingEvent;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 import net.minecraftforge.fml.common.network.NetworkRegistry;
 import net.minecraftforge.fml.common.network.simpleimpl.SimpleNetworkWrapper;
@@ -64,6 +69,14 @@ public class CommonProxy {
         Enchantments.registerEnchantments(event);
     }
 
+    @SubscribeEvent
+    public static void onWorldSave(WorldEvent.Save event) {
+        // templates are written in background, make sure they are on disk along with the world
+        if (!event.getWorld().isRemote) {
+            CapsuleTemplateWriter.flush();
+        }
+    }
+
     public void preInit(FMLPreInitializationEvent event) {
         Config.configDir = new File(event.getModConfigurationDirectory(), "capsule");
         Configuration config = new Configuration(event.getSuggestedConfigurationFile());
@@ -71,6 +84,7 @@ public class CommonProxy {
         Config.initLootConfigs();
         Config.initRecipesConfigs();
         Config.initEnchantsConfigs();
+        Config.initPerformanceConfigs();
 
         // copy default config and structures to config/capsule folder, and load them in Config.
         refreshConfigTemplates();
@@ -86,9 +100,11 @@ public class CommonProxy {
         // client ask server to reload the held blueprint capsule
         simpleNetworkWrapper.registerMessage(CapsuleLeftClickQueryHandler.class, CapsuleLeftClickQueryToServer.class, CAPSULE_CHANNEL_MESSAGE_ID++, Side.SERVER);
         // server sends to client the data needed to preview a deploy
-        simpleNetworkWrapper.registerMessage(CapsuleContentPreviewAnswerHandler.class, CapsuleContentPreviewAnswerToClient.class, CAPSULE_CHANNEL_MESSAGE_ID++, Side.CLIENT);
+        simpleNetworkWrapper.registerMessage(CapsulePreviewFragmentHandler.class, CapsulePreviewFragmentToClient.class, CAPSULE_CHANNEL_MESSAGE_ID++, Side.CLIENT);
         // server sends to client the data needed to render undeploy
         simpleNetworkWrapper.registerMessage(CapsuleUndeployNotifHandler.class, CapsuleUndeployNotifToClient.class, CAPSULE_CHANNEL_MESSAGE_ID++, Side.CLIENT);
+        // server tells client that a template changed and its preview must be asked again
+        simpleNetworkWrapper.registerMessage(CapsulePreviewInvalidateHandler.class, CapsulePreviewInvalidateToClient.class, CAPSULE_CHANNEL_MESSAGE_ID++, Side.CLIENT);
     }
 
     public void refreshConfigTemplates() {
@@ -118,6 +134,11 @@ public class CommonProxy {
         refreshConfigTemplates();
     }
 
+    public void serverStopping(FMLServerStoppingEvent e) {
+        CapsuleTaskScheduler.completeAll();
+        CapsuleTemplateWriter.flush();
+    }
+
     public void openGuiScreen(EntityPlayer playerIn) {
 
     }
@@ -1,5 +1,6 @@
 package capsule;
 
+import capsule.helpers.BlockSet;
 import capsule.helpers.Serialization;
 import capsule.loot.LootPathData;
 import com.google.gson.JsonObject;
@@ -24,9 +25,9 @@ public class Config {
     protected static final org.apache.logging.log4j.Logger LOGGER = LogManager.getLogger(Config.class);
 
     public static Configuration config = null;
-    public static List<Block> excludedBlocks;
-    public static List<Block> overridableBlocks;
-    public static List<Block> opExcludedBlocks;
+    public static BlockSet excludedBlocks;
+    public static BlockSet overridableBlocks;
+    public static BlockSet opExcludedBlocks;
     public static String[] lootTemplatesPaths;
     public static List<String> lootTablesList;
     public static Map<String, LootPathData> lootTemplatesData = new HashMap<>();
@@ -43,6 +44,12 @@ public class Config {
     public static String recallEnchantType;
     public static Map<String, Integer> capsuleSizes = new HashMap<>();
 
+    public static int templateCacheMaxMegabytes;
+    public static String templateFileFormat;
+    public static int incrementalMinBlocks;
+    public static int tickBudgetMillis;
+    public static List<String> bulkBlockUpdates;
+
     public static Supplier<Integer> ironCapsuleSize = () -> capsuleSizes.get("ironCapsuleSize");
     public static Supplier<Integer> goldCapsuleSize = () -> capsuleSizes.get("goldCapsuleSize");
     public static Supplier<Integer> diamondCapsuleSize = () -> capsuleSizes.get("diamondCapsuleSize");
@@ -93,7 +100,7 @@ public class Config {
         excludedBlocksProp.setComment("List of block ids that will never be captured by a non overpowered capsule. While capturing, the blocks will stay in place.\n Ex: minecraft:mob_spawner");
         Block[] exBlocks = null;
         exBlocks = Serialization.deserializeBlockArray(excludedBlocksProp.getStringList());
-        Config.excludedBlocks = Arrays.asList(exBlocks);
+        Config.excludedBlocks = new BlockSet(Arrays.asList(exBlocks));
 
         // OP Excluded
         Property opExcludedBlocksProp = Config.config.get("Balancing", "opExcludedBlocks", excludedBlocksOP);
@@ -101,7 +108,7 @@ public class Config {
         Block[] opExBlocks = null;
 
         opExBlocks = Serialization.deserializeBlockArray(opExcludedBlocksProp.getStringList());
-        Config.opExcludedBlocks = Arrays.asList(opExBlocks);
+        Config.opExcludedBlocks = new BlockSet(Arrays.asList(opExBlocks));
 
 
         // Overridable
@@ -132,7 +139,16 @@ public class Config {
 
         Block[] ovBlocks = null;
         ovBlocks = Serialization.deserializeBlockArray(overridableBlocksProp.getStringList());
-        Config.overridableBlocks = Arrays.asList(ovBlocks);
+        Config.overridableBlocks = new BlockSet(Arrays.asList(ovBlocks));
+    }
+
+    /**
+     * Block ids changed, ie. when joining a server.
+     */
+    public static void rebuildBlockSets() {
+        if (excludedBlocks != null) excludedBlocks.rebuild();
+        if (opExcludedBlocks != null) opExcludedBlocks.rebuild();
+        if (overridableBlocks != null) overridableBlocks.rebuild();
     }
 
     public static void initLootConfigs() {
@@ -236,6 +252,28 @@ public class Config {
         Config.recallEnchantType = recallEnchantTypeConfig.getString();
     }
 
+    public static void initPerformanceConfigs() {
+        Property templateCacheMaxMegabytesProp = Config.config.get("Performance", "templateCacheMaxMegabytes", 64);
+        templateCacheMaxMegabytesProp.setComment("Estimated memory (in MB) that loaded capsule templates can use, for each template folder (world capsules, rewards).\nLeast recently used templates are unloaded above this limit and read again from disk when needed. Deployed capsules always stay loaded.\nDefault: 64");
+        Config.templateCacheMaxMegabytes = templateCacheMaxMegabytesProp.getInt();
+
+        Property templateFileFormatProp = Config.config.get("Performance", "templateFileFormat", "nbt");
+        templateFileFormatProp.setComment("File format used to save capsule templates. Both formats can always be read.\nPossible values : \"nbt\" (same as structure blocks) or \"capsule\" (compact, smaller and faster to load).\nExisting templates can be converted with /capsule convertTemplates <format>.\nDefault value: \"nbt\"");
+        Config.templateFileFormat = templateFileFormatProp.getString().toLowerCase();
+
+        Property incrementalMinBlocksProp = Config.config.get("Performance", "incrementalMinBlocks", 4096);
+        incrementalMinBlocksProp.setComment("Capsules containing at least that many blocks are deployed over several ticks instead of all at once, to prevent the server from freezing. Same for captures of an area of at least that many blocks.\nThe area is protected against block edits until it is complete.\nDefault: 4096");
+        Config.incrementalMinBlocks = incrementalMinBlocksProp.getInt();
+
+        Property tickBudgetMillisProp = Config.config.get("Performance", "tickBudgetMillis", 10);
+        tickBudgetMillisProp.setComment("Time (in milliseconds) that capsule deployments and captures running over several ticks can use at each tick, shared by all of them.\nDefault: 10");
+        Config.tickBudgetMillis = Math.max(1, tickBudgetMillisProp.getInt());
+
+        Property bulkBlockUpdatesProp = Config.config.get("Performance", "bulkBlockUpdates", new String[]{"deploy", "blueprint", "undeploy"});
+        bulkBlockUpdatesProp.setComment("Capsule operations writing blocks directly in the chunks: light and players are updated once for all the blocks instead of block by block. Much faster for big capsules.\nThe light of the area can take a few seconds to be fully updated.\nPossible values : deploy, blueprint (blueprint deployment), undeploy (removal of the captured blocks).\nDefault: deploy, blueprint, undeploy");
+        Config.bulkBlockUpdates = Arrays.asList(bulkBlockUpdatesProp.getStringList());
+    }
+
     public static BooleanSupplier isEnabled(String key) {
         return () -> !Config.capsuleSizes.containsKey(key) || Config.capsuleSizes.get(key) > 0;
     }
@@ -7,9 +7,11 @@ import net.minecraftforge.fml.common.Mod.EventHandler;
 import net.minecraftforge.fml.common.Mod.Instance;
 import net.minecraftforge.fml.common.SidedProxy;
 import net.minecraftforge.fml.common.event.FMLInitializationEvent;
+import net.minecraftforge.fml.common.event.FMLModIdMappingEvent;
 import net.minecraftforge.fml.common.event.FMLPostInitializationEvent;
 import net.minecraftforge.fml.common.event.FMLPreInitializationEvent;
 import net.minecraftforge.fml.common.event.FMLServerStartingEvent;
+import net.minecraftforge.fml.common.event.FMLServerStoppingEvent;
 
 @Mod(modid = Main.MODID, name = Main.MODNAME, version = Main.VERSION, useMetadata = true)
 public class Main {
@@ -41,9 +43,19 @@ public class Main {
         proxy.postInit(e);
     }
 
+    @EventHandler
+    public void idMapping(FMLModIdMappingEvent e) {
+        Config.rebuildBlockSets();
+    }
+
     @EventHandler
     public void serverStarting(FMLServerStartingEvent e) {
         proxy.serverStarting(e);
     }
 
+    @EventHandler
+    public void serverStopping(FMLServerStoppingEvent e) {
+        proxy.serverStopping(e);
+    }
+
 }
@@ -1,11 +1,18 @@
 package capsule;
 
+import capsule.helpers.BlockSet;
 import capsule.items.CapsuleItem;
+import capsule.network.server.CapsulePreviewWorker;
+import capsule.structure.CapsuleBlockWriter;
+import capsule.structure.CapsuleBlueprintMatcher;
+import capsule.structure.CapsuleDestinationCheck;
+import capsule.structure.CapsuleTaskScheduler;
 import capsule.structure.CapsuleTemplate;
+import capsule.structure.CapsuleTemplateDeploy;
 import capsule.structure.CapsuleTemplateManager;
 import com.google.gson.JsonObject;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import net.minecraft.block.Block;
-import net.minecraft.block.BlockLiquid;
 import net.minecraft.block.state.IBlockState;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.EntityLivingBase;
@@ -19,7 +26,10 @@ import net.minecraft.util.ResourceLocation;
 import net.minecraft.util.math.AxisAlignedBB;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.text.TextComponentTranslation;
+import net.minecraft.world.World;
 import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.gen.structure.StructureBoundingBox;
 import net.minecraft.world.gen.structure.template.PlacementSettings;
 import net.minecraft.world.gen.structure.template.Template;
 import net.minecraftforge.common.MinecraftForge;
@@ -33,12 +43,9 @@ import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nullable;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 public class StructureSaver {
 
@@ -51,6 +58,7 @@ public class StructureSaver {
     public static CapsuleTemplateManager getRewardManager(MinecraftServer server) {
         if (RewardManager == null) {
             RewardManager = new CapsuleTemplateManager(server.getDataDirectory().getPath(), net.minecraftforge.fml.common.FMLCommonHandler.instance().getDataFixer());
+            RewardManager.setChangeListener(CapsulePreviewWorker::onTemplateChanged);
             File rewardDir = new File(Config.rewardTemplatesPath);
             if (!rewardDir.exists()) {
                 rewardDir.mkdirs();
@@ -59,7 +67,43 @@ public class StructureSaver {
         return RewardManager;
     }
 
-    public static CapsuleTemplate undeploy(WorldServer worldserver, String playerID, String capsuleStructureId, BlockPos startPos, int size, List<Block> excluded,
+    /**
+     * Capture the region into the template and remove it from the world. Regions of at least Config.incrementalMinBlocks blocks
+     * are captured over several ticks.
+     *
+     * @param capsule capsule receiving the content, it can't be picked up until the capture is over.
+     * @param onDone  called with the template once the capture is over, or with null if it failed.
+     * @return false if the capture failed right away.
+     */
+    public static boolean undeploy(WorldServer worldserver, String playerID, String capsuleStructureId, BlockPos startPos, int size, BlockSet excluded,
+                                   Map<BlockPos, Block> legacyItemOccupied, @Nullable ItemStack capsule, Consumer<CapsuleTemplate> onDone) {
+
+        if ((long) size * size * size < Config.incrementalMinBlocks) {
+            CapsuleTemplate template = undeploy(worldserver, playerID, capsuleStructureId, startPos, size, excluded, legacyItemOccupied);
+            onDone.accept(template);
+            return template != null;
+        }
+
+        MinecraftServer minecraftserver = worldserver.getMinecraftServer();
+        CapsuleTemplateManager templatemanager = getTemplateManager(worldserver);
+        if (minecraftserver == null || templatemanager == null) {
+            LOGGER.error("Capsule template manager is not available");
+            onDone.accept(null);
+            return false;
+        }
+        EntityPlayer player = playerID == null ? null : worldserver.getPlayerEntityByName(playerID);
+        if (isRegionBusy(worldserver, startPos, size, player)) {
+            onDone.accept(null);
+            return false;
+        }
+        Map<BlockPos, Block> occupiedPositions = templatemanager.getMutableTemplate(minecraftserver, new ResourceLocation(capsuleStructureId)).occupiedPositions;
+        if (legacyItemOccupied != null) occupiedPositions = legacyItemOccupied;
+        CapsuleTaskScheduler.schedule(new CapsuleUndeployTask(worldserver, playerID, templatemanager, capsuleStructureId, startPos, size, excluded,
+                occupiedPositions, capsule, onDone));
+        return true;
+    }
+
+    public static CapsuleTemplate undeploy(WorldServer worldserver, String playerID, String capsuleStructureId, BlockPos startPos, int size, BlockSet excluded,
                                            Map<BlockPos, Block> legacyItemOccupied) {
 
         MinecraftServer minecraftserver = worldserver.getMinecraftServer();
@@ -74,20 +118,26 @@ public class StructureSaver {
             LOGGER.error("getTemplateManager returned null");
             return null;
         }
-        CapsuleTemplate template = templatemanager.getTemplate(minecraftserver, new ResourceLocation(capsuleStructureId));
+        EntityPlayer player = null;
+        if (playerID != null) {
+            player = worldserver.getPlayerEntityByName(playerID);
+        }
+        if (isRegionBusy(worldserver, startPos, size, player)) {
+            return null;
+        }
+        CapsuleTemplate template = templatemanager.getMutableTemplate(minecraftserver, new ResourceLocation(capsuleStructureId));
         Map<BlockPos, Block> occupiedPositions = template.occupiedPositions;
         if (legacyItemOccupied != null) occupiedPositions = legacyItemOccupied;
         List<BlockPos> transferedPositions = template.snapshotBlocksFromWorld(worldserver, startPos, new BlockPos(size, size, size), occupiedPositions,
                 excluded, outCapturedEntities);
         template.removeOccupiedPositions();
-        EntityPlayer player = null;
         if (playerID != null) {
             template.setAuthor(playerID);
-            player = worldserver.getPlayerEntityByName(playerID);
         }
         boolean writingOK = templatemanager.writeTemplate(minecraftserver, new ResourceLocation(capsuleStructureId));
         if (writingOK) {
-            List<BlockPos> couldNotBeRemoved = removeTransferedBlockFromWorld(transferedPositions, worldserver, player);
+            List<BlockPos> couldNotBeRemoved = removeTransferedBlockFromWorld(transferedPositions, worldserver, player,
+                    CapsuleBlockWriter.forOperation(worldserver, CapsuleBlockWriter.OPERATION_UNDEPLOY));
             for (Entity e : outCapturedEntities) {
                 e.setDropItemsWhenDead(false);
                 e.setDead();
@@ -106,7 +156,15 @@ public class StructureSaver {
 
     }
 
-    public static boolean undeployBlueprint(WorldServer worldserver, String playerID, ItemStack blueprintItemStack, BlockPos startPos, int size, List<Block> excluded) {
+    public static boolean undeployBlueprint(WorldServer worldserver, String playerID, ItemStack blueprintItemStack, BlockPos startPos, int size, BlockSet excluded) {
+        return undeployBlueprint(worldserver, playerID, blueprintItemStack, startPos, size, excluded, null);
+    }
+
+    /**
+     * @param outMismatches if the world doesn't match the blueprint, receives the positions that differ.
+     */
+    public static boolean undeployBlueprint(WorldServer worldserver, String playerID, ItemStack blueprintItemStack, BlockPos startPos, int size, BlockSet excluded,
+                                            @Nullable List<BlockPos> outMismatches) {
 
         MinecraftServer minecraftserver = worldserver.getMinecraftServer();
         if (minecraftserver == null) return false;
@@ -121,36 +179,33 @@ public class StructureSaver {
         if (legacyItemOccupied != null) occupiedPositions = legacyItemOccupied;
         List<BlockPos> transferedPositions = tempTemplate.snapshotBlocksFromWorld(worldserver, startPos, new BlockPos(size, size, size), occupiedPositions,
                 excluded, null);
-        List<Template.BlockInfo> worldBlocks = tempTemplate.blocks.stream().filter(b -> !isFlowingLiquid(b)).collect(Collectors.toList());
-        List<Template.BlockInfo> blueprintBLocks = blueprintTemplate.blocks.stream().filter(b -> !isFlowingLiquid(b)).collect(Collectors.toList());
 
         EntityPlayer player = null;
         if (playerID != null) {
             player = worldserver.getPlayerEntityByName(playerID);
         }
-        // compare the 2 lists, assume they are sorted the same since the same script is used to build them.
-        if (blueprintBLocks.size() != worldBlocks.size())
-            return false;
-
-        List<String> tempTemplateSorted = worldBlocks.stream()
-                .map(StructureSaver::serializeComparable)
-                .sorted()
-                .collect(Collectors.toList());
-        List<String> blueprintTemplateSorted = blueprintBLocks.stream()
-                .map(StructureSaver::serializeComparable)
-                .sorted()
-                .collect(Collectors.toList());
-        boolean blueprintMatch = IntStream.range(0, tempTemplateSorted.size())
-                .allMatch(i -> tempTemplateSorted.get(i).equals(blueprintTemplateSorted.get(i)));
+        // compare the blocks as multisets of fingerprints
+        CapsuleBlueprintMatcher matcher = new CapsuleBlueprintMatcher();
+        boolean blueprintMatch = matcher.matches(blueprintTemplate, tempTemplate.blocks);
+        if (!blueprintMatch && outMismatches != null) {
+            outMismatches.addAll(matcher.findMismatches(blueprintTemplate, CapsuleItem.getPlacement(blueprintItemStack), startPos, tempTemplate.blocks));
+        }
 
-        blueprintMatch = blueprintMatch && worldBlocks.stream().allMatch(b -> b.tileentityData == null || !b.tileentityData.hasKey("Items") || b.tileentityData.getTagList("Items", Constants.NBT.TAG_COMPOUND).hasNoTags());
+        for (Template.BlockInfo b : tempTemplate.blocks) {
+            if (b.tileentityData != null && b.tileentityData.hasKey("Items") && !b.tileentityData.getTagList("Items", Constants.NBT.TAG_COMPOUND).hasNoTags()) {
+                blueprintMatch = false;
+                if (outMismatches != null) outMismatches.add(startPos.add(b.pos));
+            }
+        }
 
         if (blueprintMatch) {
-            blueprintTemplate.removeOccupiedPositions();
             String capsuleStructureId = CapsuleItem.getStructureName(blueprintItemStack);
-            boolean written = blueprint.getLeft().writeTemplate(minecraftserver, new ResourceLocation(capsuleStructureId));
+            blueprint.getLeft().getMutableTemplate(minecraftserver, new ResourceLocation(capsuleStructureId)).removeOccupiedPositions();
+            // blueprint content is unchanged, only its deploy state
+            boolean written = blueprint.getLeft().writeOccupiedPositions(minecraftserver, new ResourceLocation(capsuleStructureId));
             if (written) {
-                List<BlockPos> couldNotBeRemoved = removeTransferedBlockFromWorld(transferedPositions, worldserver, player);
+                List<BlockPos> couldNotBeRemoved = removeTransferedBlockFromWorld(transferedPositions, worldserver, player,
+                        CapsuleBlockWriter.forOperation(worldserver, CapsuleBlockWriter.OPERATION_UNDEPLOY));
                 // check if some remove failed, it should never happen but keep it in case to prevent exploits
                 if (couldNotBeRemoved != null) {
                     return false;
@@ -163,30 +218,6 @@ public class StructureSaver {
         return blueprintMatch;
     }
 
-    public static String serializeComparable(Template.BlockInfo b) {
-        return b.blockState.getBlock().getUnlocalizedName()
-                + "@"
-                + b.blockState.getBlock().damageDropped(b.blockState)
-                + (b.tileentityData == null ? "" : nbtStringNotEmpty(filterIdentityNBT(b)));
-    }
-
-    public static NBTTagCompound filterIdentityNBT(Template.BlockInfo b) {
-        NBTTagCompound nbt = b.tileentityData.copy();
-        List<String> converted = Config.getBlueprintIdentityNBT(b.blockState.getBlock());
-        nbt.getKeySet().removeIf(key -> converted == null || !converted.contains(key));
-        return nbt;
-    }
-
-    public static String nbtStringNotEmpty(NBTTagCompound nbt) {
-        if (nbt.hasNoTags()) return "";
-        return nbt.toString();
-    }
-
-    public static boolean isFlowingLiquid(Template.BlockInfo b) {
-        return b.blockState.getBlock() instanceof BlockLiquid && b.blockState.getValue(BlockLiquid.LEVEL) != 0;
-    }
-
-
     @Nullable
     public static CapsuleTemplateManager getTemplateManager(WorldServer worldserver) {
         if (worldserver == null) return null;
@@ -196,18 +227,33 @@ public class StructureSaver {
         if (!CapsulesManagers.containsKey(directoryPath)) {
             File capsuleDir = new File(directory, "structures/capsule");
             capsuleDir.mkdirs();
-            CapsulesManagers.put(directoryPath, new CapsuleTemplateManager(capsuleDir.toString(), net.minecraftforge.fml.common.FMLCommonHandler.instance().getDataFixer()));
+            CapsuleTemplateManager manager = new CapsuleTemplateManager(capsuleDir.toString(), net.minecraftforge.fml.common.FMLCommonHandler.instance().getDataFixer());
+            manager.setChangeListener(CapsulePreviewWorker::onTemplateChanged);
+            CapsulesManagers.put(directoryPath, manager);
         }
         return CapsulesManagers.get(directoryPath);
     }
 
+    /**
+     * @return true if a capsule is already being deployed or captured in that region.
+     */
+    private static boolean isRegionBusy(WorldServer world, BlockPos startPos, int size, EntityPlayer player) {
+        StructureBoundingBox region = new StructureBoundingBox(startPos, startPos.add(size - 1, size - 1, size - 1));
+        if (!CapsuleTaskScheduler.isLocked(world, region)) return false;
+        if (player != null) {
+            player.sendMessage(new TextComponentTranslation("capsule.error.regionBusy"));
+        }
+        return true;
+    }
+
     /**
      * Use with caution, delete the blocks at the indicated positions.
      *
+     * @param blockWriter used to remove the blocks, flushed at the end.
      * @return list of blocks that could not be removed
      */
     public static List<BlockPos> removeTransferedBlockFromWorld(List<BlockPos> transferedPositions, WorldServer
-            world, EntityPlayer player) {
+            world, EntityPlayer player, CapsuleBlockWriter blockWriter) {
 
         List<BlockPos> couldNotBeRemoved = null;
 
@@ -224,7 +270,7 @@ public class StructureSaver {
             try {
                 // uses same mechanic for TileEntity than net.minecraft.world.gen.structure.template.Template
                 if (playerCanRemove(world, pos, player)) {
-                    world.setBlockToAir(pos);
+                    blockWriter.setBlockState(pos, Blocks.AIR.getDefaultState(), 3);
                 } else {
                     if (couldNotBeRemoved == null) couldNotBeRemoved = new ArrayList<>();
                     couldNotBeRemoved.add(pos);
@@ -239,6 +285,7 @@ public class StructureSaver {
                 couldNotBeRemoved.add(pos);
             }
         }
+        blockWriter.flush();
 
         // revert rule to previous value even in case of crash
         world.restoringBlockSnapshots = false;
@@ -249,7 +296,15 @@ public class StructureSaver {
 
 
     public static boolean deploy(ItemStack capsule, WorldServer playerWorld, String thrower, BlockPos
-            dest, List<Block> overridableBlocks, List<String> outEntityBlocking, PlacementSettings placementsettings) {
+            dest, BlockSet overridableBlocks, List<String> outEntityBlocking, PlacementSettings placementsettings) {
+        return deploy(capsule, playerWorld, thrower, dest, overridableBlocks, outEntityBlocking, placementsettings, null);
+    }
+
+    /**
+     * @param onLateFailure called if the deployment runs over several ticks and fails after this method returned true.
+     */
+    public static boolean deploy(ItemStack capsule, WorldServer playerWorld, String thrower, BlockPos
+            dest, BlockSet overridableBlocks, List<String> outEntityBlocking, PlacementSettings placementsettings, @Nullable Runnable onLateFailure) {
 
         Pair<CapsuleTemplateManager, CapsuleTemplate> templatepair = getTemplate(capsule, playerWorld);
         CapsuleTemplate template = templatepair.getRight();
@@ -263,8 +318,15 @@ public class StructureSaver {
 
         Map<BlockPos, Block> outOccupiedSpawnPositions = new HashMap<>();
         int size = CapsuleItem.getSize(capsule);
+        if (isRegionBusy(playerWorld, dest, size, player)) {
+            return false;
+        }
         // check if the destination is valid : no unoverwritable block and no entities in the way.
-        boolean destValid = isDestinationValid(template, placementsettings, playerWorld, dest, size, overridableBlocks, outOccupiedSpawnPositions, outEntityBlocking);
+        // The blocks may have been checked in background while the capsule was in flight.
+        CapsuleDestinationCheck destinationCheck = CapsuleDestinationCheck.take(capsule, playerWorld, dest, size, template, placementsettings, overridableBlocks);
+        boolean destValid = destinationCheck != null
+                ? destinationCheck.isDestinationValid(outOccupiedSpawnPositions, outEntityBlocking)
+                : isDestinationValid(template, placementsettings, playerWorld, dest, size, overridableBlocks, outOccupiedSpawnPositions, outEntityBlocking);
         if (!destValid) {
             printDeployFailure(outEntityBlocking, player);
             return false;
@@ -279,37 +341,97 @@ public class StructureSaver {
         final Map<BlockPos, Block> occupiedPositions = outOccupiedSpawnPositions;
         List<BlockPos> spawnedBlocks = new ArrayList<>();
         List<Entity> spawnedEntities = new ArrayList<>();
+        CapsuleBlockWriter blockWriter = CapsuleBlockWriter.forOperation(playerWorld,
+                CapsuleItem.isBlueprint(capsule) ? CapsuleBlockWriter.OPERATION_BLUEPRINT : CapsuleBlockWriter.OPERATION_DEPLOY);
 
         CapsuleTemplateManager templateManager = templatepair.getLeft();
         String capsuleStructureId = CapsuleItem.getStructureName(capsule);
+        template = templateManager.getMutableTemplate(playerWorld.getMinecraftServer(), new ResourceLocation(capsuleStructureId));
         template.saveOccupiedPositions(occupiedPositions);
-        if (!templateManager.writeTemplate(playerWorld.getMinecraftServer(), new ResourceLocation(capsuleStructureId))) {
+        if (!templateManager.writeOccupiedPositions(playerWorld.getMinecraftServer(), new ResourceLocation(capsuleStructureId))) {
             printWriteTemplateError(player, capsuleStructureId);
             return false;
         }
 
+        if (template.blocks.size() >= Config.incrementalMinBlocks) {
+            // big capsule: deploy over several ticks from a copy, the template can be cleared meanwhile
+            CapsuleTemplate content = template.snapshot();
+            CapsuleTemplateDeploy deployment = new CapsuleTemplateDeploy(content, playerWorld, dest, placementsettings, occupiedPositions, overridableBlocks, spawnedBlocks, spawnedEntities, blockWriter);
+            StructureBoundingBox region = new StructureBoundingBox(dest, dest.add(size - 1, size - 1, size - 1));
+            CapsuleTaskScheduler.schedule(new CapsuleTaskScheduler.Task() {
+                @Override
+                public World getWorld() {
+                    return playerWorld;
+                }
+
+                @Override
+                public StructureBoundingBox getRegion() {
+                    return region;
+                }
+
+                @Override
+                public ItemStack getCapsule() {
+                    return capsule;
+                }
+
+                @Override
+                public boolean run(long budgetNanos) {
+                    boolean done = deployment.run(budgetNanos);
+                    if (done) placePlayerOnTop(playerWorld, dest, size);
+                    return done;
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    EntityPlayer throwerPlayer = thrower == null ? null : playerWorld.getPlayerEntityByName(thrower);
+                    printDeployError(throwerPlayer, e, "Couldn't deploy the capsule");
+                    rollbackDeploy(playerWorld, throwerPlayer, templateManager, capsuleStructureId, content, spawnedBlocks, spawnedEntities, blockWriter);
+                    if (onLateFailure != null) onLateFailure.run();
+                }
+            });
+            return true;
+        }
+
         try {
-            template.spawnBlocksAndEntities(playerWorld, dest, placementsettings, occupiedPositions, overridableBlocks, spawnedBlocks, spawnedEntities);
+            template.spawnBlocksAndEntities(playerWorld, dest, placementsettings, occupiedPositions, overridableBlocks, spawnedBlocks, spawnedEntities, blockWriter);
             placePlayerOnTop(playerWorld, dest, size);
 
             return true;
         } catch (Exception err) {
             printDeployError(player, err, "Couldn't deploy the capsule");
-
-            // rollback
-            removeTransferedBlockFromWorld(spawnedBlocks, playerWorld, player);
-            template.removeOccupiedPositions();
-            if (!templateManager.writeTemplate(playerWorld.getMinecraftServer(), new ResourceLocation(capsuleStructureId))) {
-                printWriteTemplateError(player, capsuleStructureId);
-            }
-            for (Entity e : spawnedEntities) {
-                e.setDropItemsWhenDead(false);
-                e.setDead();
-            }
+            rollbackDeploy(playerWorld, player, templateManager, capsuleStructureId, null, spawnedBlocks, spawnedEntities, blockWriter);
             return false;
         }
     }
 
+    /**
+     * Remove what was deployed and forget the deploy state.
+     *
+     * @param content content to put back in the template if it was cleared after the deploy started.
+     */
+    private static void rollbackDeploy(WorldServer playerWorld, EntityPlayer player, CapsuleTemplateManager templateManager, String capsuleStructureId,
+                                       @Nullable CapsuleTemplate content, List<BlockPos> spawnedBlocks, List<Entity> spawnedEntities, CapsuleBlockWriter blockWriter) {
+        removeTransferedBlockFromWorld(spawnedBlocks, playerWorld, player, blockWriter);
+        for (Entity e : spawnedEntities) {
+            e.setDropItemsWhenDead(false);
+            e.setDead();
+        }
+        ResourceLocation location = new ResourceLocation(capsuleStructureId);
+        CapsuleTemplate template = templateManager.getMutableTemplate(playerWorld.getMinecraftServer(), location);
+        template.removeOccupiedPositions();
+        boolean written;
+        if (content != null && template.blocks.isEmpty() && template.entities.isEmpty()) {
+            template.blocks.addAll(content.blocks);
+            template.entities.addAll(content.entities);
+            written = templateManager.writeTemplate(playerWorld.getMinecraftServer(), location);
+        } else {
+            written = templateManager.writeOccupiedPositions(playerWorld.getMinecraftServer(), location);
+        }
+        if (!written) {
+            printWriteTemplateError(player, capsuleStructureId);
+        }
+    }
+
     public static void placePlayerOnTop(WorldServer playerWorld, BlockPos dest, int size) {
         // Players don't block deployment, instead they are pushed up if they would suffocate
         List<EntityLivingBase> players = playerWorld.getEntitiesWithinAABB(
@@ -371,7 +493,7 @@ public class StructureSaver {
     /**
      * Simulate a block placement at all positions to see if anythink revoke the placement of block by the player.
      */
-    private static boolean playerCanRemove(WorldServer worldserver, BlockPos blockPos, EntityPlayer player) {
+    static boolean playerCanRemove(WorldServer worldserver, BlockPos blockPos, EntityPlayer player) {
         if (player != null) {
             return isPlaceEventAllowed(worldserver, blockPos, player);
         }
@@ -399,6 +521,50 @@ public class StructureSaver {
         return template;
     }
 
+    /**
+     * Start checking in background the destination where the capsule will be deployed.
+     *
+     * @param dest lowest corner of the destination
+     */
+    public static void startDestinationCheck(ItemStack capsule, WorldServer world, BlockPos dest) {
+        CapsuleTemplate template = getTemplate(capsule, world).getRight();
+        if (template == null) return;
+        CapsuleDestinationCheck.start(capsule, world, dest, CapsuleItem.getSize(capsule), template, CapsuleItem.getPlacement(capsule), Config.overridableBlocks);
+    }
+
+    /**
+     * Load the capsule template now and keep it in memory for the given duration.
+     */
+    public static void pinTemplate(ItemStack capsule, WorldServer world, long durationMillis) {
+        Pair<CapsuleTemplateManager, CapsuleTemplate> templatepair = getTemplate(capsule, world);
+        if (templatepair.getLeft() != null) {
+            templatepair.getLeft().pin(new ResourceLocation(CapsuleItem.getStructureName(capsule)), durationMillis);
+        }
+    }
+
+    /**
+     * Release the template pinned by pinTemplate, without loading it.
+     */
+    public static void unpinTemplate(ItemStack capsule, WorldServer world) {
+        String structureName = CapsuleItem.getStructureName(capsule);
+        if (structureName == null) return;
+        CapsuleTemplateManager templateManager = CapsuleItem.isReward(capsule) || structureName.startsWith("config/") && CapsuleItem.isBlueprint(capsule)
+                ? getRewardManager(world.getMinecraftServer())
+                : getTemplateManager(world);
+        if (templateManager != null) {
+            templateManager.unpin(new ResourceLocation(structureName));
+        }
+    }
+
+    /**
+     * @return world capsule managers and rewards manager currently instanciated.
+     */
+    public static List<CapsuleTemplateManager> getLoadedTemplateManagers() {
+        List<CapsuleTemplateManager> managers = new ArrayList<>(CapsulesManagers.values());
+        if (RewardManager != null) managers.add(RewardManager);
+        return managers;
+    }
+
     public static Pair<CapsuleTemplateManager, CapsuleTemplate> getTemplateForCapsule(WorldServer
                                                                                               playerWorld, String structureName) {
         CapsuleTemplateManager templatemanager = getTemplateManager(playerWorld);
@@ -428,59 +594,48 @@ public class StructureSaver {
      */
     public static boolean isDestinationValid(CapsuleTemplate template, PlacementSettings placementIn, WorldServer
             destWorld, BlockPos destOriginPos, int size,
-                                             List<Block> overridable, Map<BlockPos, Block> outOccupiedPositions, List<String> outEntityBlocking) {
+                                             BlockSet overridableBlocks, Map<BlockPos, Block> outOccupiedPositions, List<String> outEntityBlocking) {
 
         IBlockState air = Blocks.AIR.getDefaultState();
-
-        List<Template.BlockInfo> srcblocks = template.blocks;
-
-        Map<BlockPos, Template.BlockInfo> blockInfoByPosition = new HashMap<>();
-        for (Template.BlockInfo template$blockinfo : srcblocks) {
-            BlockPos blockpos = CapsuleTemplate.transformedBlockPos(placementIn, template$blockinfo.pos).add(destOriginPos).add(CapsuleTemplate.recenterRotation((size - 1) / 2, placementIn));
-            blockInfoByPosition.put(blockpos, template$blockinfo);
-        }
-
-        // check the destination is ok for every block of the template
-        for (int y = size - 1; y >= 0; y--) {
-            for (int x = 0; x < size; x++) {
-                for (int z = 0; z < size; z++) {
-
-                    BlockPos destPos = destOriginPos.add(x, y, z);
-                    Template.BlockInfo srcInfo = blockInfoByPosition.get(destPos);
+        int maxX = destOriginPos.getX() + size - 1;
+        int maxY = destOriginPos.getY() + size - 1;
+        int maxZ = destOriginPos.getZ() + size - 1;
+        if (!CapsuleDestinationCheck.isRegionLoaded(destWorld, destOriginPos, size)) return false;
+
+        Long2ObjectOpenHashMap<Template.BlockInfo> blockInfoByPosition = CapsuleDestinationCheck.blocksByPosition(template, placementIn, destOriginPos, size);
+        Long2ObjectOpenHashMap<List<EntityLivingBase>> entitiesByPosition = CapsuleDestinationCheck.entitiesByPosition(destWorld, destOriginPos, size);
+
+        // check the destination is ok for every block of the template, column by column
+        BlockPos.MutableBlockPos destPos = new BlockPos.MutableBlockPos();
+        for (int x = destOriginPos.getX(); x <= maxX; x++) {
+            for (int z = destOriginPos.getZ(); z <= maxZ; z++) {
+                Chunk chunk = destWorld.getChunkFromChunkCoords(x >> 4, z >> 4);
+                for (int y = maxY; y >= destOriginPos.getY(); y--) {
+
+                    destPos.setPos(x, y, z);
+                    long destKey = destPos.toLong();
+                    Template.BlockInfo srcInfo = blockInfoByPosition.get(destKey);
                     IBlockState templateBlockState = air;
                     if (srcInfo != null) {
                         templateBlockState = srcInfo.blockState;
                     }
 
-                    if (!destWorld.isBlockLoaded(destPos)) return false;
-                    IBlockState worldDestState = destWorld.getBlockState(destPos);
-
-                    boolean worldDestOccupied = (worldDestState != air && !overridable.contains(worldDestState.getBlock()));
+                    IBlockState worldDestState = chunk.getBlockState(x, y, z);
                     if (worldDestState != air && outOccupiedPositions != null) {
-                        outOccupiedPositions.put(destPos, worldDestState.getBlock());
+                        outOccupiedPositions.put(destPos.toImmutable(), worldDestState.getBlock());
                     }
 
-                    boolean srcOccupied = (templateBlockState != air && !overridable.contains(templateBlockState.getBlock()));
-
-                    List<EntityLivingBase> entities = destWorld.getEntitiesWithinAABB(
-                            EntityLivingBase.class,
-                            new AxisAlignedBB(destPos.getX(), destPos.getY(), destPos.getZ(), destPos.getX() + 1, destPos.getY() + 1, destPos.getZ() + 1),
-                            entity -> !(entity instanceof EntityPlayer)
-                    );
-
+                    List<EntityLivingBase> entities = entitiesByPosition.get(destKey);
 
                     // if destination is occupied, and source is neither
                     // excluded from transportation, nor can't be overriden by
                     // destination, then the merge can't be done.
-                    if ((entities.size() > 0 && srcOccupied) || (worldDestOccupied && !overridable.contains(templateBlockState.getBlock()))) {
-                        if (entities.size() > 0 && outEntityBlocking != null) {
-                            for (Object e : entities) {
-                                Entity entity = (Entity) e;
-                                if (entity != null) {
-                                    outEntityBlocking.add(entity.getName());
-                                }
+                    if ((entities != null && CapsuleDestinationCheck.isSolid(templateBlockState, overridableBlocks))
+                            || CapsuleDestinationCheck.isBlocking(worldDestState, templateBlockState, overridableBlocks)) {
+                        if (entities != null && outEntityBlocking != null) {
+                            for (Entity entity : entities) {
+                                outEntityBlocking.add(entity.getName());
                             }
-
                         }
                         return false;
                     }
@@ -503,7 +658,7 @@ public class StructureSaver {
             LOGGER.error("getTemplateManager returned null");
             return "CExcetion-" + player + "-" + csd.getNextCount();
         }
-        while (templatemanager.get(playerWorld.getMinecraftServer(), new ResourceLocation(capsuleID)) != null) {
+        while (templatemanager.exists(playerWorld.getMinecraftServer(), new ResourceLocation(capsuleID))) {
             capsuleID = "C-" + player + "-" + csd.getNextCount();
         }
 
@@ -521,7 +676,7 @@ public class StructureSaver {
             LOGGER.error("getTemplateManager returned null");
             return "BException-" + csd.getNextCount();
         }
-        while (templatemanager.get(world.getMinecraftServer(), new ResourceLocation(capsuleID)) != null) {
+        while (templatemanager.exists(world.getMinecraftServer(), new ResourceLocation(capsuleID))) {
             capsuleID = BLUEPRINT_PREFIX + csd.getNextCount();
         }
 
@@ -543,7 +698,7 @@ public class StructureSaver {
     public static boolean duplicateTemplate(NBTTagCompound templateData, String destinationStructureName, CapsuleTemplateManager destManager, MinecraftServer server, boolean onlyWhitelisted, List<String> outExcluded) {
         // create a destination template
         ResourceLocation destinationLocation = new ResourceLocation(destinationStructureName);
-        CapsuleTemplate destTemplate = destManager.getTemplate(server, destinationLocation);
+        CapsuleTemplate destTemplate = new CapsuleTemplate();
         // populate template from source data
         destTemplate.read(templateData);
         // empty occupied position, it makes no sense for a new template to copy those situational data
@@ -580,8 +735,8 @@ public class StructureSaver {
             // remove all entities
             destTemplate.entities.clear();
         }
-        // write the new template
-        return destManager.writeTemplate(server, destinationLocation);
+        // write the new template, sharing the content with identical copies
+        return destManager.writeSharedTemplate(server, destinationLocation, destTemplate);
     }
 
     /**
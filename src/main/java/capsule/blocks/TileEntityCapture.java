@@ -9,22 +9,27 @@ import net.minecraft.util.math.BlockPos;
 import net.minecraftforge.fml.relauncher.Side;
 import net.minecraftforge.fml.relauncher.SideOnly;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class TileEntityCapture extends TileEntity {
 
-    public static List<TileEntityCapture> instances = new ArrayList<>();
-
     public TileEntityCapture() {
         super();
-        instances.add(this);
     }
 
+    @Override
+    public void onLoad() {
+        TileEntityCaptureRegistry.register(this);
+    }
+
+    @Override
+    public void invalidate() {
+        super.invalidate();
+        TileEntityCaptureRegistry.unregister(this);
+    }
 
     @Override
     public void onChunkUnload() {
         this.getTileData().setInteger("size", 0);
+        TileEntityCaptureRegistry.unregister(this);
     }
 
     /**
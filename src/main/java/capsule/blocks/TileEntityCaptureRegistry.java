@@ -0,0 +1,83 @@
+package capsule.blocks;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Loaded capture markers, by world then by chunk, so the ones near a position are found without going through all
+ * the markers ever created. Markers register when loaded in their world and unregister when invalidated or unloaded,
+ * the weak references let the ones that were missed be garbage collected anyway.
+ * Client and integrated server worlds are registered from their own thread, hence the synchronization.
+ *
+ * @author Lythom
+ */
+public class TileEntityCaptureRegistry {
+
+    private static final Map<World, Long2ObjectMap<List<WeakReference<TileEntityCapture>>>> markers = new WeakHashMap<>();
+
+    public static synchronized void register(TileEntityCapture te) {
+        World world = te.getWorld();
+        if (world == null) return;
+        List<WeakReference<TileEntityCapture>> inChunk = markers.computeIfAbsent(world, w -> new Long2ObjectOpenHashMap<>())
+                .computeIfAbsent(chunkKey(te.getPos()), chunk -> new ArrayList<>(1));
+        for (WeakReference<TileEntityCapture> ref : inChunk) {
+            if (ref.get() == te) return;
+        }
+        inChunk.add(new WeakReference<>(te));
+    }
+
+    public static synchronized void unregister(TileEntityCapture te) {
+        World world = te.getWorld();
+        if (world == null) return;
+        Long2ObjectMap<List<WeakReference<TileEntityCapture>>> byChunk = markers.get(world);
+        if (byChunk == null) return;
+        long chunk = chunkKey(te.getPos());
+        List<WeakReference<TileEntityCapture>> inChunk = byChunk.get(chunk);
+        if (inChunk == null) return;
+        inChunk.removeIf(ref -> ref.get() == null || ref.get() == te);
+        if (inChunk.isEmpty()) byChunk.remove(chunk);
+        if (byChunk.isEmpty()) markers.remove(world);
+    }
+
+    /**
+     * @param chunkRadius distance in chunks from the chunk of pos
+     * @return the loaded markers of the world in the chunks around pos
+     */
+    public static synchronized List<TileEntityCapture> getNear(World world, BlockPos pos, int chunkRadius) {
+        List<TileEntityCapture> result = new ArrayList<>();
+        Long2ObjectMap<List<WeakReference<TileEntityCapture>>> byChunk = markers.get(world);
+        if (byChunk == null) return result;
+        int chunkX = pos.getX() >> 4;
+        int chunkZ = pos.getZ() >> 4;
+        for (int x = chunkX - chunkRadius; x <= chunkX + chunkRadius; x++) {
+            for (int z = chunkZ - chunkRadius; z <= chunkZ + chunkRadius; z++) {
+                List<WeakReference<TileEntityCapture>> inChunk = byChunk.get(ChunkPos.asLong(x, z));
+                if (inChunk == null) continue;
+                Iterator<WeakReference<TileEntityCapture>> it = inChunk.iterator();
+                while (it.hasNext()) {
+                    TileEntityCapture te = it.next().get();
+                    if (te == null || te.isInvalid()) {
+                        it.remove();
+                    } else {
+                        result.add(te);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static long chunkKey(BlockPos pos) {
+        return ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4);
+    }
+}
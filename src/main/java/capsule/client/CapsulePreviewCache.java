@@ -0,0 +1,86 @@
+package capsule.client;
+
+import capsule.network.CapsulePreview;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Client side previews received from the server, by structure name. Keeps the most recently used previews only.
+ * Each preview has the revision of the template it was computed from: when the server tells a template changed,
+ * the preview is dropped and older answers still on their way are ignored.
+ * Accessed from the network thread and the client thread.
+ *
+ * @author Lythom
+ */
+public class CapsulePreviewCache {
+
+    private static final int MAX_PREVIEWS = 32;
+    /** a preview asked and not received is asked again after that delay. */
+    private static final long REQUEST_TIMEOUT_MILLIS = 5000;
+
+    private static final Map<String, Entry> previews = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_PREVIEWS;
+        }
+    };
+    /** lowest revision accepted by structure name, raised by the invalidations */
+    private static final Map<String, Integer> minRevisions = new HashMap<>();
+    private static final Map<String, Long> requestedAt = new HashMap<>();
+
+    private static class Entry {
+        private final int revision;
+        private final CapsulePreview preview;
+
+        private Entry(int revision, CapsulePreview preview) {
+            this.revision = revision;
+            this.preview = preview;
+        }
+    }
+
+    @Nullable
+    public static synchronized CapsulePreview get(String structureName) {
+        Entry entry = previews.get(structureName);
+        return entry == null ? null : entry.preview;
+    }
+
+    public static synchronized void put(String structureName, int revision, CapsulePreview preview) {
+        requestedAt.remove(structureName);
+        if (revision < minRevisions.getOrDefault(structureName, Integer.MIN_VALUE)) return;
+        previews.put(structureName, new Entry(revision, preview));
+    }
+
+    /**
+     * The template changed on the server: drop the preview, answers older than that revision will be ignored.
+     */
+    public static synchronized void invalidate(String structureName, int revision) {
+        minRevisions.merge(structureName, revision, Math::max);
+        Entry entry = previews.get(structureName);
+        if (entry != null && entry.revision < revision) {
+            previews.remove(structureName);
+        }
+        requestedAt.remove(structureName);
+    }
+
+    /**
+     * @return true if the preview should be asked to the server: it is missing and was not asked recently.
+     * The request is then considered sent.
+     */
+    public static synchronized boolean markRequested(String structureName) {
+        if (previews.containsKey(structureName)) return false;
+        long now = System.currentTimeMillis();
+        Long last = requestedAt.get(structureName);
+        if (last != null && now - last < REQUEST_TIMEOUT_MILLIS) return false;
+        requestedAt.put(structureName, now);
+        return true;
+    }
+
+    public static synchronized void clear() {
+        previews.clear();
+        minRevisions.clear();
+        requestedAt.clear();
+    }
+}
@@ -0,0 +1,177 @@
+package capsule.client;
+
+import capsule.Config;
+import capsule.structure.CapsuleTemplate;
+import net.minecraft.client.renderer.BufferBuilder;
+import net.minecraft.client.renderer.GLAllocation;
+import net.minecraft.client.renderer.GlStateManager;
+import net.minecraft.client.renderer.Tessellator;
+import net.minecraft.client.renderer.vertex.DefaultVertexFormats;
+import net.minecraft.util.Mirror;
+import net.minecraft.util.Rotation;
+import net.minecraft.util.math.AxisAlignedBB;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import net.minecraft.world.gen.structure.template.PlacementSettings;
+import org.lwjgl.opengl.GL11;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static capsule.client.RendererUtils.drawCapsuleCube;
+import static capsule.client.RendererUtils.setColor;
+import static capsule.structure.CapsuleTemplate.recenterRotation;
+
+/**
+ * Deploy preview of a structure for a placement: the boxes are transformed and compiled in a display list once,
+ * then only translated to the aimed position each frame.
+ * The cells obstructed by non overridable blocks are searched again only when the aimed position changes
+ * or when a block changes in the previewed region, and compiled in their own display list.
+ *
+ * @author Lythom
+ */
+public class CapsulePreviewGeometry {
+
+    private static final AxisAlignedBB ERROR_BOX = new AxisAlignedBB(0, +0.01, 0, 1.01, 1.01, 1.01);
+
+    private final List<AxisAlignedBB> source;
+    private final Mirror mirror;
+    private final Rotation rotation;
+    private final int extendSize;
+    /** boxes relative to the deploy position, recentered and expanded */
+    private final List<AxisAlignedBB> boxes;
+    /** union of the boxes */
+    private final AxisAlignedBB bounds;
+    private int boxesList = -1;
+
+    private World obstructionWorld = null;
+    private BlockPos obstructionOrigin = null;
+    private boolean obstructionsDirty = true;
+    private int obstructionsList = -1;
+    private boolean hasObstructions = false;
+
+    public CapsulePreviewGeometry(List<AxisAlignedBB> source, PlacementSettings placement, int extendSize) {
+        this.source = source;
+        this.mirror = placement.getMirror();
+        this.rotation = placement.getRotation();
+        this.extendSize = extendSize;
+        BlockPos recenter = recenterRotation(extendSize, placement);
+        this.boxes = new ArrayList<>(source.size());
+        AxisAlignedBB union = null;
+        for (AxisAlignedBB bb : source) {
+            AxisAlignedBB transformed = CapsuleTemplate.transformedAxisAlignedBB(placement, bb)
+                    .offset(recenter.getX(), recenter.getY(), recenter.getZ())
+                    .expand(1, 1, 1);
+            boxes.add(transformed);
+            union = union == null ? transformed : union.union(transformed);
+        }
+        this.bounds = union;
+    }
+
+    public boolean matches(List<AxisAlignedBB> source, PlacementSettings placement, int extendSize) {
+        return this.source == source && this.mirror == placement.getMirror() && this.rotation == placement.getRotation() && this.extendSize == extendSize;
+    }
+
+    /**
+     * Draw the preview and the obstructed cells at the deploy position. Must be called between doPositionPrologue and doPositionEpilogue.
+     */
+    public void render(World world, BlockPos origin, int color) {
+        if (boxesList < 0) {
+            boxesList = GLAllocation.generateDisplayLists(1);
+            GlStateManager.glNewList(boxesList, GL11.GL_COMPILE);
+            Tessellator tessellator = Tessellator.getInstance();
+            BufferBuilder bufferBuilder = tessellator.getBuffer();
+            for (AxisAlignedBB bb : boxes) {
+                bufferBuilder.begin(2, DefaultVertexFormats.POSITION);
+                drawCapsuleCube(bb, bufferBuilder);
+                tessellator.draw();
+            }
+            GlStateManager.glEndList();
+        }
+
+        if (obstructionsDirty || world != obstructionWorld || !origin.equals(obstructionOrigin)) {
+            compileObstructions(world, origin);
+        }
+        if (hasObstructions) {
+            GlStateManager.pushMatrix();
+            GlStateManager.translate(origin.getX(), origin.getY(), origin.getZ());
+            GL11.glLineWidth(5.0F);
+            setColor(0xaa0000, 50);
+            GlStateManager.callList(obstructionsList);
+            GlStateManager.popMatrix();
+        }
+
+        GlStateManager.pushMatrix();
+        GlStateManager.translate(origin.getX(), origin.getY() + 0.01, origin.getZ());
+        GL11.glLineWidth(1.0F);
+        setColor(color, 50);
+        GlStateManager.callList(boxesList);
+        GlStateManager.popMatrix();
+    }
+
+    private void compileObstructions(World world, BlockPos origin) {
+        obstructionWorld = world;
+        obstructionOrigin = origin;
+        obstructionsDirty = false;
+        if (obstructionsList < 0) {
+            obstructionsList = GLAllocation.generateDisplayLists(1);
+        }
+
+        hasObstructions = false;
+        GlStateManager.glNewList(obstructionsList, GL11.GL_COMPILE);
+        Tessellator tessellator = Tessellator.getInstance();
+        BufferBuilder bufferBuilder = tessellator.getBuffer();
+        BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+        for (AxisAlignedBB bb : boxes) {
+            for (int z = (int) bb.minZ; z < bb.maxZ; z++) {
+                for (int y = (int) bb.minY; y < bb.maxY; y++) {
+                    for (int x = (int) bb.minX; x < bb.maxX; x++) {
+                        pos.setPos(origin.getX() + x, origin.getY() + y, origin.getZ() + z);
+                        if (!Config.overridableBlocks.contains(world.getBlockState(pos).getBlock())) {
+                            hasObstructions = true;
+                            bufferBuilder.begin(2, DefaultVertexFormats.POSITION);
+                            drawCapsuleCube(ERROR_BOX.offset(x, y, z), bufferBuilder);
+                            tessellator.draw();
+                        }
+                    }
+                }
+            }
+        }
+        GlStateManager.glEndList();
+    }
+
+    /**
+     * Search the obstructions again if the block is in the previewed region.
+     */
+    public void onBlockChanged(World world, BlockPos pos) {
+        if (world != obstructionWorld || obstructionOrigin == null || bounds == null) return;
+        int x = pos.getX() - obstructionOrigin.getX();
+        int y = pos.getY() - obstructionOrigin.getY();
+        int z = pos.getZ() - obstructionOrigin.getZ();
+        if (x >= bounds.minX && x < bounds.maxX && y >= bounds.minY && y < bounds.maxY && z >= bounds.minZ && z < bounds.maxZ) {
+            obstructionsDirty = true;
+        }
+    }
+
+    /**
+     * Search the obstructions again if the range of blocks, bounds included, intersects the previewed region.
+     */
+    public void onBlocksChanged(World world, int x1, int y1, int z1, int x2, int y2, int z2) {
+        if (world != obstructionWorld || obstructionOrigin == null || bounds == null) return;
+        int ox = obstructionOrigin.getX();
+        int oy = obstructionOrigin.getY();
+        int oz = obstructionOrigin.getZ();
+        if (x2 - ox >= bounds.minX && x1 - ox < bounds.maxX
+                && y2 - oy >= bounds.minY && y1 - oy < bounds.maxY
+                && z2 - oz >= bounds.minZ && z1 - oz < bounds.maxZ) {
+            obstructionsDirty = true;
+        }
+    }
+
+    public void delete() {
+        if (boxesList >= 0) GLAllocation.deleteDisplayLists(boxesList);
+        if (obstructionsList >= 0) GLAllocation.deleteDisplayLists(obstructionsList);
+        boxesList = -1;
+        obstructionsList = -1;
+    }
+}
@@ -1,42 +1,65 @@
 package capsule.client;
 
-import capsule.Config;
 import capsule.blocks.CaptureTESR;
 import capsule.blocks.TileEntityCapture;
+import capsule.blocks.TileEntityCaptureRegistry;
 import capsule.helpers.Spacial;
 import capsule.items.CapsuleItem;
+import capsule.network.CapsulePreview;
 import capsule.structure.CapsuleTemplate;
+import net.minecraft.block.state.IBlockState;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.entity.EntityPlayerSP;
 import net.minecraft.client.renderer.BufferBuilder;
 import net.minecraft.client.renderer.Tessellator;
 import net.minecraft.client.renderer.vertex.DefaultVertexFormats;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.InventoryPlayer;
 import net.minecraft.item.Item;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.util.SoundCategory;
+import net.minecraft.util.SoundEvent;
 import net.minecraft.util.math.AxisAlignedBB;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.math.RayTraceResult;
+import net.minecraft.world.IWorldEventListener;
 import net.minecraft.world.World;
 import net.minecraft.world.gen.structure.template.PlacementSettings;
 import net.minecraftforge.client.event.RenderWorldLastEvent;
+import net.minecraftforge.event.world.WorldEvent;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 import net.minecraftforge.fml.common.gameevent.TickEvent.Phase;
 import net.minecraftforge.fml.common.gameevent.TickEvent.PlayerTickEvent;
+import net.minecraftforge.fml.common.network.FMLNetworkEvent;
 import org.lwjgl.opengl.GL11;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import javax.annotation.Nullable;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 import static capsule.client.RendererUtils.*;
-import static capsule.structure.CapsuleTemplate.recenterRotation;
 
 public class CapsulePreviewHandler {
-    public static final Map<String, List<AxisAlignedBB>> currentPreview = new HashMap<>();
+    private static final int PREFETCH_INTERVAL_TICKS = 20;
+
+    /** capture markers further than that from the player are not rendered anyway, see TileEntityCapture.getMaxRenderDistanceSquared */
+    private static final int CAPTURE_MARKERS_CHUNK_RADIUS = 3;
+
     private int lastSize = 0;
     private int lastColor = 0;
+    private World lastCaptureWorld = null;
+    private long lastCaptureChunk = 0;
+    /** capture markers currently showing the capture zone */
+    private List<TileEntityCapture> shownCaptureMarkers = Collections.emptyList();
+
+    /** compiled geometry of the last deploy preview shown */
+    private CapsulePreviewGeometry previewGeometry = null;
+    /** used instead of an empty preview */
+    private List<AxisAlignedBB> emptyPreview = null;
+    private int emptyPreviewExtendSize = -1;
 
     public CapsulePreviewHandler() {
     }
@@ -65,9 +88,32 @@ public class CapsulePreviewHandler {
         if (event.player instanceof EntityPlayerSP && event.phase.equals(Phase.START)) {
             EntityPlayerSP player = (EntityPlayerSP) event.player;
             tryPreviewCapture(player, player.getHeldItemMainhand());
+            if (player.ticksExisted % PREFETCH_INTERVAL_TICKS == 0) {
+                prefetchHotbarPreviews(player);
+            }
+        }
+    }
+
+    /**
+     * Ask the previews of the capsules in the hotbar before they are selected.
+     */
+    private void prefetchHotbarPreviews(EntityPlayerSP player) {
+        for (int i = 0; i < InventoryPlayer.getHotbarSize(); i++) {
+            ItemStack stack = player.inventory.getStackInSlot(i);
+            if (stack.getItem() instanceof CapsuleItem && CapsuleItem.hasStructureLink(stack)
+                    && stack.getItemDamage() != CapsuleItem.STATE_DEPLOYED
+                    && stack.getItemDamage() != CapsuleItem.STATE_EMPTY
+                    && stack.getItemDamage() != CapsuleItem.STATE_EMPTY_ACTIVATED) {
+                ((CapsuleItem) stack.getItem()).askPreviewIfNeeded(stack);
+            }
         }
     }
 
+    @SubscribeEvent
+    public void onClientDisconnect(FMLNetworkEvent.ClientDisconnectionFromServerEvent event) {
+        CapsulePreviewCache.clear();
+    }
+
     private boolean tryPreviewCapture(EntityPlayerSP player, ItemStack heldItem) {
         // an item is in hand
         if (!heldItem.isEmpty()) {
@@ -77,15 +123,15 @@ public class CapsulePreviewHandler {
                 CapsuleItem capsule = (CapsuleItem) heldItem.getItem();
                 //noinspection ConstantConditions
                 if (heldItem.hasTagCompound() && heldItem.getTagCompound().hasKey("size")) {
-                    setCaptureTESizeColor(heldItem.getTagCompound().getInteger("size"), CapsuleItem.getBaseColor(heldItem), player.getEntityWorld());
+                    setCaptureTESizeColor(heldItem.getTagCompound().getInteger("size"), CapsuleItem.getBaseColor(heldItem), player);
                     return true;
                 }
 
             } else {
-                setCaptureTESizeColor(0, 0, player.getEntityWorld());
+                setCaptureTESizeColor(0, 0, player);
             }
         } else {
-            setCaptureTESizeColor(0, 0, player.getEntityWorld());
+            setCaptureTESizeColor(0, 0, player);
         }
 
         return false;
@@ -110,83 +156,64 @@ public class CapsulePreviewHandler {
                 BlockPos destOriginPos = rtc.getBlockPos().add(rtc.sideHit.getDirectionVec()).add(-extendSize, 0.01, -extendSize);
                 String structureName = heldItemMainhand.getTagCompound().getString("structureName");
 
-                AxisAlignedBB errorBoundingBox = new AxisAlignedBB(
-                        0,
-                        +0.01,
-                        0,
-                        1.01,
-                        1.01,
-                        1.01);
-
-                synchronized (CapsulePreviewHandler.currentPreview) {
-                    if (CapsulePreviewHandler.currentPreview.containsKey(structureName) || size == 1) {
-
-                        List<AxisAlignedBB> blockspos = new ArrayList<>();
-                        if (size > 1) {
-                            blockspos = CapsulePreviewHandler.currentPreview.get(structureName);
-                        } else if (heldItemMainhand.getItemDamage() == CapsuleItem.STATE_EMPTY) {
-                            // (1/2) hack this renderer for specific case : capture of a 1-sized empty capsule
-                            BlockPos pos = rtc.getBlockPos().subtract(destOriginPos);
-                            blockspos.add(new AxisAlignedBB(pos, pos));
-                        }
-                        if (blockspos.isEmpty()) {
-                            BlockPos pos = new BlockPos(extendSize, 0, extendSize);
-                            blockspos.add(new AxisAlignedBB(pos, pos));
-                        }
+                CapsulePreview preview = CapsulePreviewCache.get(structureName);
+                if (preview != null || size == 1) {
 
-                        doPositionPrologue();
-                        doWirePrologue();
+                    doPositionPrologue();
+                    doWirePrologue();
+
+                    if (size == 1 && heldItemMainhand.getItemDamage() == CapsuleItem.STATE_EMPTY) {
+                        // hack this renderer for specific case : capture of a 1-sized empty capsule
+                        BlockPos pos = rtc.getBlockPos().subtract(destOriginPos);
+                        AxisAlignedBB dest = CapsuleTemplate.transformedAxisAlignedBB(CapsuleItem.getPlacement(heldItemMainhand), new AxisAlignedBB(pos, pos))
+                                .expand(1, 1, 1)
+                                .offset(destOriginPos.getX(), destOriginPos.getY() + 0.01, destOriginPos.getZ());
                         Tessellator tessellator = Tessellator.getInstance();
                         BufferBuilder bufferBuilder = tessellator.getBuffer();
-
+                        GL11.glLineWidth(5.0F);
+                        bufferBuilder.begin(2, DefaultVertexFormats.POSITION);
+                        setColor(CapsuleItem.getBaseColor(heldItemMainhand), 50);
+                        drawCapsuleCube(dest, bufferBuilder);
+                        tessellator.draw();
+
+                    } else {
+                        List<AxisAlignedBB> blockspos = size > 1 ? preview.getBoxes() : Collections.emptyList();
+                        if (blockspos.isEmpty()) {
+                            blockspos = getEmptyPreview(extendSize);
+                        }
                         PlacementSettings placement = CapsuleItem.getPlacement(heldItemMainhand);
-
-                        for (AxisAlignedBB bb : blockspos) {
-                            BlockPos recenter = recenterRotation(extendSize, placement);
-                            AxisAlignedBB dest = CapsuleTemplate.transformedAxisAlignedBB(placement, bb)
-                                    .offset(destOriginPos.getX(), destOriginPos.getY() + 0.01, destOriginPos.getZ())
-                                    .offset(recenter.getX(), recenter.getY(), recenter.getZ())
-                                    .expand(1, 1, 1);
-
-                            int color = 0xDDDDDD;
-                            if (heldItemMainhand.getItemDamage() == CapsuleItem.STATE_EMPTY) {
-                                // (2/2) hack this renderer for specific case : capture of a 1-sized empty capsule
-                                GL11.glLineWidth(5.0F);
-                                color = CapsuleItem.getBaseColor(heldItemMainhand);
-                            } else {
-                                for (double j = dest.minZ; j < dest.maxZ; ++j) {
-                                    for (double k = dest.minY; k < dest.maxY; ++k) {
-                                        for (double l = dest.minX; l < dest.maxX; ++l) {
-                                            BlockPos pos = new BlockPos(l, k, j);
-                                            if (!Config.overridableBlocks.contains(thePlayer.getEntityWorld().getBlockState(pos).getBlock())) {
-                                                GL11.glLineWidth(5.0F);
-                                                bufferBuilder.begin(2, DefaultVertexFormats.POSITION);
-                                                setColor(0xaa0000, 50);
-                                                drawCapsuleCube(errorBoundingBox.offset(pos), bufferBuilder);
-                                                tessellator.draw();
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-
-                            GL11.glLineWidth(1.0F);
-                            bufferBuilder.begin(2, DefaultVertexFormats.POSITION);
-                            setColor(color, 50);
-                            drawCapsuleCube(dest, bufferBuilder);
-                            tessellator.draw();
+                        if (previewGeometry == null || !previewGeometry.matches(blockspos, placement, extendSize)) {
+                            if (previewGeometry != null) previewGeometry.delete();
+                            previewGeometry = new CapsulePreviewGeometry(blockspos, placement, extendSize);
                         }
-
-                        setColor(0xFFFFFF, 255);
-                        doWireEpilogue();
-                        doPositionEpilogue();
+                        previewGeometry.render(thePlayer.getEntityWorld(), destOriginPos, 0xDDDDDD);
                     }
+
+                    setColor(0xFFFFFF, 255);
+                    doWireEpilogue();
+                    doPositionEpilogue();
                 }
             }
         }
 
     }
 
+    private List<AxisAlignedBB> getEmptyPreview(int extendSize) {
+        if (emptyPreview == null || emptyPreviewExtendSize != extendSize) {
+            BlockPos pos = new BlockPos(extendSize, 0, extendSize);
+            emptyPreview = Collections.singletonList(new AxisAlignedBB(pos, pos));
+            emptyPreviewExtendSize = extendSize;
+        }
+        return emptyPreview;
+    }
+
+    @SubscribeEvent
+    public void onWorldLoad(WorldEvent.Load event) {
+        if (event.getWorld().isRemote) {
+            event.getWorld().addEventListener(new BlockChangeListener(event.getWorld()));
+        }
+    }
+
     private void tryPreviewRecall(ItemStack heldItem) {
         // an item is in hand
         if (heldItem != null) {
@@ -261,25 +288,101 @@ public class CapsulePreviewHandler {
                 extendSize, color);
     }
 
-    private void setCaptureTESizeColor(int size, int color, World worldIn) {
-        if (size == lastSize && color == lastColor) return;
+    private void setCaptureTESizeColor(int size, int color, EntityPlayer player) {
+        World worldIn = player.getEntityWorld();
+        long chunk = ChunkPos.asLong(player.chunkCoordX, player.chunkCoordZ);
+        if (size == lastSize && color == lastColor && worldIn == lastCaptureWorld && (size == 0 || chunk == lastCaptureChunk)) return;
 
-        // change MinecraftNBT of all existing TileEntityCapture in the world to make them display the preview zone
+        // change MinecraftNBT of the TileEntityCapture around the player to make them display the preview zone
         // remember it's client side only
-        for (TileEntityCapture te : TileEntityCapture.instances) {
-            if (te.getWorld() == worldIn) {
-                TileEntityCapture tec = te;
-                tec.getTileData().setInteger("size", size);
-                tec.getTileData().setInteger("color", color);
-                worldIn.markBlockRangeForRenderUpdate(
-                        te.getPos().add(-size / 2, -size / 2, -size / 2),
-                        te.getPos().add(size / 2, size / 2, size / 2)
-                );
+        List<TileEntityCapture> nearMarkers = size == 0
+                ? Collections.emptyList()
+                : TileEntityCaptureRegistry.getNear(worldIn, player.getPosition(), CAPTURE_MARKERS_CHUNK_RADIUS);
+        for (TileEntityCapture te : shownCaptureMarkers) {
+            if (!nearMarkers.contains(te)) {
+                setCaptureTESizeColor(te, 0, 0);
             }
         }
+        for (TileEntityCapture te : nearMarkers) {
+            setCaptureTESizeColor(te, size, color);
+        }
+        shownCaptureMarkers = nearMarkers;
         lastSize = size;
         lastColor = color;
+        lastCaptureWorld = worldIn;
+        lastCaptureChunk = chunk;
     }
 
+    private void setCaptureTESizeColor(TileEntityCapture te, int size, int color) {
+        if (te.getSize() == size && te.getColor() == color) return;
+        int updateSize = Math.max(size, te.getSize());
+        te.getTileData().setInteger("size", size);
+        te.getTileData().setInteger("color", color);
+        te.getWorld().markBlockRangeForRenderUpdate(
+                te.getPos().add(-updateSize / 2, -updateSize / 2, -updateSize / 2),
+                te.getPos().add(updateSize / 2, updateSize / 2, updateSize / 2)
+        );
+    }
+
+    /**
+     * Tells the preview to search the obstructions again when a block changes.
+     */
+    private class BlockChangeListener implements IWorldEventListener {
+        private final World world;
+
+        private BlockChangeListener(World world) {
+            this.world = world;
+        }
+
+        @Override
+        public void notifyBlockUpdate(World worldIn, BlockPos pos, IBlockState oldState, IBlockState newState, int flags) {
+            if (oldState != newState && previewGeometry != null) previewGeometry.onBlockChanged(worldIn, pos);
+        }
+
+        @Override
+        public void notifyLightSet(BlockPos pos) {
+        }
+
+        @Override
+        public void markBlockRangeForRenderUpdate(int x1, int y1, int z1, int x2, int y2, int z2) {
+            // chunk data packets, ie. sent by bulk block changes, only mark their range
+            if (previewGeometry != null) previewGeometry.onBlocksChanged(world, x1, y1, z1, x2, y2, z2);
+        }
+
+        @Override
+        public void playSoundToAllNearExcept(@Nullable EntityPlayer player, SoundEvent soundIn, SoundCategory category, double x, double y, double z, float volume, float pitch) {
+        }
+
+        @Override
+        public void playRecord(SoundEvent soundIn, BlockPos pos) {
+        }
+
+        @Override
+        public void spawnParticle(int particleID, boolean ignoreRange, double xCoord, double yCoord, double zCoord, double xSpeed, double ySpeed, double zSpeed, int... parameters) {
+        }
+
+        @Override
+        public void spawnParticle(int id, boolean ignoreRange, boolean minimiseParticleLevel, double x, double y, double z, double xSpeed, double ySpeed, double zSpeed, int... parameters) {
+        }
+
+        @Override
+        public void onEntityAdded(Entity entityIn) {
+        }
 
+        @Override
+        public void onEntityRemoved(Entity entityIn) {
+        }
+
+        @Override
+        public void broadcastSound(int soundID, BlockPos pos, int data) {
+        }
+
+        @Override
+        public void playEvent(EntityPlayer player, int type, BlockPos blockPosIn, int data) {
+        }
+
+        @Override
+        public void sendBlockBreakProgress(int breakerId, BlockPos pos, int progress) {
+        }
+    }
 }
@@ -5,11 +5,16 @@ import capsule.StructureSaver;
 import capsule.helpers.Capsule;
 import capsule.helpers.Files;
 import capsule.helpers.Spacial;
+import capsule.items.CapsuleActivationTimers;
 import capsule.items.CapsuleItem;
 import capsule.loot.CapsuleLootEntry;
 import capsule.loot.CapsuleLootTableHook;
+import capsule.structure.CapsuleBlockWriter;
 import capsule.structure.CapsuleTemplate;
+import capsule.structure.CapsuleTemplateCache;
+import capsule.structure.CapsuleTemplateHeader;
 import capsule.structure.CapsuleTemplateManager;
+import capsule.structure.CapsuleTemplateWriter;
 import com.google.common.base.Joiner;
 import net.minecraft.block.state.IBlockState;
 import net.minecraft.client.Minecraft;
@@ -17,6 +22,7 @@ import net.minecraft.command.*;
 import net.minecraft.entity.item.EntityItem;
 import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.init.Blocks;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.server.MinecraftServer;
@@ -31,6 +37,7 @@ import net.minecraft.util.text.event.ClickEvent;
 import net.minecraft.util.text.event.ClickEvent.Action;
 import net.minecraft.util.text.event.HoverEvent;
 import net.minecraft.world.WorldServer;
+import net.minecraft.world.gen.structure.template.PlacementSettings;
 import net.minecraft.world.gen.structure.template.Template;
 import net.minecraft.world.gen.structure.template.TemplateManager;
 import net.minecraft.world.storage.loot.LootContext;
@@ -40,6 +47,7 @@ import org.apache.commons.lang3.tuple.Pair;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
 
@@ -51,6 +59,8 @@ public class CapsuleCommand extends CommandBase {
     public static List<ICommandSender> sentUsageURL = new ArrayList<>();
 
     public static final String[] COMMAND_LIST = new String[]{
+            "cleanupTemplates",
+            "convertTemplates",
             "giveEmpty",
             "giveLinked",
             "giveBlueprint",
@@ -63,10 +73,15 @@ public class CapsuleCommand extends CommandBase {
             "reloadLootList",
             "setAuthor",
             "setBaseColor",
-            "setMaterialColor"
+            "setMaterialColor",
+            "stats"
     };
 
+    private static final String BENCHMARK_USAGE = "/capsule benchmark <placement [size]|validation|meshing>";
+
     public static final String[] COMMAND_HELP = new String[]{
+            "cleanupTemplates",
+            "convertTemplates <nbt|capsule>",
             "giveEmpty [size] [overpowered]",
             "giveLinked <rewardName> [playerName]",
             "giveBlueprint <rewardName> [playerName]",
@@ -79,7 +94,8 @@ public class CapsuleCommand extends CommandBase {
             "reloadLootList",
             "setAuthor <authorName>",
             "setBaseColor <color>",
-            "setMaterialColor <color>"
+            "setMaterialColor <color>",
+            "stats"
     };
 
     @Override
@@ -121,6 +137,9 @@ public class CapsuleCommand extends CommandBase {
                     case "setMaterialColor":
                         return getListOfStringsMatchingLastWord(args, CapsuleLootEntry.COLOR_PALETTE);
 
+                    case "convertTemplates":
+                        return getListOfStringsMatchingLastWord(args, CapsuleTemplateManager.FORMAT_NBT, CapsuleTemplateManager.FORMAT_CAPSULE);
+
                     case "fromStructure":
                         try {
                             player = getCommandSenderAsPlayer(sender);
@@ -191,11 +210,167 @@ public class CapsuleCommand extends CommandBase {
                 throw new WrongUsageException(getUsage(sender));
             }
             Files.populateAndLoadLootList(Config.configDir, Config.lootTemplatesPaths, Config.lootTemplatesData);
+            // template files may have been added by hand
+            for (CapsuleTemplateManager manager : StructureSaver.getLoadedTemplateManagers()) {
+                manager.invalidateIndex();
+            }
+        } else if ("cleanupTemplates".equalsIgnoreCase(args[0])) {
+            executeCleanupTemplates(server, sender, args);
+        } else if ("convertTemplates".equalsIgnoreCase(args[0])) {
+            executeConvertTemplates(server, sender, args);
+        } else if ("stats".equalsIgnoreCase(args[0])) {
+            executeStats(sender, args);
+        } else if ("benchmark".equalsIgnoreCase(args[0]) && "DEV".equals(System.getenv("__ENV__"))) {
+            executeBenchmark(sender, args, player);
         } else {
             throw new WrongUsageException(getUsage(sender));
         }
     }
 
+    private void executeConvertTemplates(MinecraftServer server, ICommandSender sender, String[] args) throws WrongUsageException {
+        if (args.length != 2 || !(CapsuleTemplateManager.FORMAT_NBT.equals(args[1]) || CapsuleTemplateManager.FORMAT_CAPSULE.equals(args[1]))) {
+            throw new WrongUsageException(getUsage(sender));
+        }
+        String format = args[1];
+        WorldServer world = sender.getEntityWorld() instanceof WorldServer ? (WorldServer) sender.getEntityWorld() : server.getWorld(0);
+        CapsuleTemplateManager worldManager = StructureSaver.getTemplateManager(world);
+        int converted = worldManager == null ? 0 : worldManager.convertTemplates(server, "", format);
+        int convertedRewards = StructureSaver.getRewardManager(server).convertTemplates(server, Config.rewardTemplatesPath, format);
+        sender.sendMessage(new TextComponentString(String.format(
+                "%d capsule template(s) and %d reward template(s) converted to %s format.", converted, convertedRewards, format
+        )));
+    }
+
+    private void executeCleanupTemplates(MinecraftServer server, ICommandSender sender, String[] args) throws WrongUsageException {
+        if (args.length != 1) {
+            throw new WrongUsageException(getUsage(sender));
+        }
+        WorldServer world = sender.getEntityWorld() instanceof WorldServer ? (WorldServer) sender.getEntityWorld() : server.getWorld(0);
+        CapsuleTemplateManager worldManager = StructureSaver.getTemplateManager(world);
+        int deleted = worldManager == null ? 0 : worldManager.deleteUnusedSharedTemplates();
+        sender.sendMessage(new TextComponentString(String.format("%d unused shared template(s) deleted.", deleted)));
+    }
+
+    private void executeStats(ICommandSender sender, String[] args) throws WrongUsageException {
+        if (args.length != 1) {
+            throw new WrongUsageException(getUsage(sender));
+        }
+        sender.sendMessage(new TextComponentString("Templates waiting to be written: " + CapsuleTemplateWriter.getQueueDepth()));
+        sender.sendMessage(new TextComponentString("Capsule activations pending: " + CapsuleActivationTimers.getPendingCount()));
+        int loaded = 0;
+        long weight = 0, hits = 0, misses = 0, evictions = 0;
+        for (CapsuleTemplateManager manager : StructureSaver.getLoadedTemplateManagers()) {
+            CapsuleTemplateCache cache = manager.getCache();
+            loaded += cache.size();
+            weight += cache.getWeight();
+            hits += cache.getHits();
+            misses += cache.getMisses();
+            evictions += cache.getEvictions();
+        }
+        sender.sendMessage(new TextComponentString(String.format(
+                "Templates loaded: %d (~%d KB), cache hits: %d, misses: %d, evictions: %d",
+                loaded, weight / 1024, hits, misses, evictions
+        )));
+    }
+
+    /**
+     * Development only: compare the performances of alternative implementations.
+     */
+    private void executeBenchmark(ICommandSender sender, String[] args, EntityPlayerMP player) throws CommandException {
+        if (player == null || args.length < 2 || args.length > 3) {
+            throw new WrongUsageException(BENCHMARK_USAGE);
+        }
+        if ("placement".equalsIgnoreCase(args[1])) {
+            int size = args.length > 2 ? parseInt(args[2], 1, 255) : 32;
+            benchmarkPlacement(sender, player.getServerWorld(), player.getPosition().add(2, 0, 2), size);
+        } else if ("validation".equalsIgnoreCase(args[1]) && args.length == 2) {
+            benchmarkValidation(sender, player.getServerWorld(), player.getPosition());
+        } else if ("meshing".equalsIgnoreCase(args[1]) && args.length == 2) {
+            benchmarkMeshing(sender);
+        } else {
+            throw new WrongUsageException(BENCHMARK_USAGE);
+        }
+    }
+
+    /**
+     * Time StructureSaver.isDestinationValid around the player, for a capsule having a floor of stone.
+     */
+    private void benchmarkValidation(ICommandSender sender, WorldServer world, BlockPos center) {
+        for (int size : new int[]{3, 15, 31, 63, 127, 255}) {
+            CapsuleTemplate template = new CapsuleTemplate();
+            template.size = new BlockPos(size, size, size);
+            for (BlockPos pos : BlockPos.getAllInBox(BlockPos.ORIGIN, new BlockPos(size - 1, 0, size - 1))) {
+                template.blocks.add(new Template.BlockInfo(pos, Blocks.STONE.getDefaultState(), null));
+            }
+            int extendLength = (size - 1) / 2;
+            BlockPos dest = new BlockPos(center.getX() - extendLength, Math.max(0, Math.min(center.getY(), world.getHeight() - size)), center.getZ() - extendLength);
+            long start = System.nanoTime();
+            boolean valid = StructureSaver.isDestinationValid(template, new PlacementSettings(), world, dest, size, Config.overridableBlocks, new HashMap<>(), new ArrayList<>());
+            long end = System.nanoTime();
+            sender.sendMessage(new TextComponentString(String.format(
+                    "Size %d: destination validated in %.2f ms (valid: %s)", size, (end - start) / 1000000.0, valid
+            )));
+        }
+    }
+
+    /**
+     * Compare the preview boxes merging of Spacial.mergeVoxels with the previous implementation, on terrain like content:
+     * layers of stone, dirt and grass with random ores and holes.
+     */
+    private void benchmarkMeshing(ICommandSender sender) {
+        IBlockState[] ores = {Blocks.COAL_ORE.getDefaultState(), Blocks.IRON_ORE.getDefaultState(), Blocks.GRAVEL.getDefaultState()};
+        for (int size : new int[]{15, 31, 63}) {
+            Random random = new Random(size);
+            List<Template.BlockInfo> blocks = new ArrayList<>();
+            for (BlockPos pos : BlockPos.getAllInBox(BlockPos.ORIGIN, new BlockPos(size - 1, size / 2, size - 1))) {
+                int roll = random.nextInt(100);
+                if (roll < 5) continue;
+                IBlockState state = pos.getY() == size / 2 ? Blocks.GRASS.getDefaultState()
+                        : pos.getY() >= size / 2 - 3 ? Blocks.DIRT.getDefaultState()
+                        : roll < 10 ? ores[random.nextInt(ores.length)]
+                        : Blocks.STONE.getDefaultState();
+                blocks.add(new Template.BlockInfo(pos, state, null));
+            }
+            long start = System.nanoTime();
+            int columnsBoxes = Spacial.mergeVoxelsByColumns(blocks).size();
+            long columnsEnd = System.nanoTime();
+            int greedyBoxes = Spacial.mergeVoxels(blocks).size();
+            long greedyEnd = System.nanoTime();
+            sender.sendMessage(new TextComponentString(String.format(
+                    "Size %d, %d blocks: by columns %d boxes in %.2f ms, greedy %d boxes in %.2f ms",
+                    size, blocks.size(), columnsBoxes, (columnsEnd - start) / 1000000.0, greedyBoxes, (greedyEnd - columnsEnd) / 1000000.0
+            )));
+        }
+    }
+
+    private void benchmarkPlacement(ICommandSender sender, WorldServer world, BlockPos origin, int size) throws CommandException {
+        List<BlockPos> positions = new ArrayList<>();
+        for (BlockPos pos : BlockPos.getAllInBox(origin, origin.add(size - 1, size - 1, size - 1))) {
+            if (!world.isAirBlock(pos)) {
+                throw new CommandException("The benchmark needs an empty area of " + size + " blocks next to the player.");
+            }
+            positions.add(pos);
+        }
+        for (boolean bulk : new boolean[]{false, true}) {
+            CapsuleBlockWriter blockWriter = new CapsuleBlockWriter(world, bulk);
+            long start = System.nanoTime();
+            for (BlockPos pos : positions) {
+                blockWriter.setBlockState(pos, Blocks.STONE.getDefaultState(), 2);
+            }
+            blockWriter.flush();
+            long placed = System.nanoTime();
+            for (BlockPos pos : positions) {
+                blockWriter.setBlockState(pos, Blocks.AIR.getDefaultState(), 3);
+            }
+            blockWriter.flush();
+            long removed = System.nanoTime();
+            sender.sendMessage(new TextComponentString(String.format(
+                    "%s block updates: %d blocks placed in %d ms, removed in %d ms",
+                    bulk ? "Bulk" : "Regular", positions.size(), (placed - start) / 1000000, (removed - placed) / 1000000
+            )));
+        }
+    }
+
     private void executeGiveEmpty(String[] args, EntityPlayerMP player) {
         if (player != null) {
             ItemStack capsule = Capsule.newEmptyCapsuleItemStack(
@@ -232,9 +407,9 @@ public class CapsuleCommand extends CommandBase {
 
         if (player != null && !StringUtils.isNullOrEmpty(srcStructureName) && player.getEntityWorld() instanceof WorldServer) {
 
-            CapsuleTemplate srcTemplate = Capsule.getRewardTemplateIfExists(Config.getRewardPathFromName(srcStructureName), server);
+            CapsuleTemplateHeader srcTemplate = StructureSaver.getRewardManager(server).getHeader(server, new ResourceLocation(Config.getRewardPathFromName(srcStructureName)));
             if (srcTemplate != null) {
-                int size = Math.max(srcTemplate.getSize().getX(), Math.max(srcTemplate.getSize().getY(), srcTemplate.getSize().getZ()));
+                int size = srcTemplate.getMaxSide();
                 if (size % 2 == 0)
                     size++;
 
@@ -294,9 +469,9 @@ public class CapsuleCommand extends CommandBase {
 
             String structurePath = Config.getRewardPathFromName(structureName);
             CapsuleTemplateManager templatemanager = StructureSaver.getRewardManager(server);
-            CapsuleTemplate template = templatemanager.get(server, new ResourceLocation(structurePath));
+            CapsuleTemplateHeader template = templatemanager.getHeader(server, new ResourceLocation(structurePath));
             if (template != null) {
-                int size = Math.max(template.getSize().getX(), Math.max(template.getSize().getY(), template.getSize().getZ()));
+                int size = template.getMaxSide();
                 if (size % 2 == 0)
                     size++;
 
@@ -337,7 +512,7 @@ public class CapsuleCommand extends CommandBase {
                 // create a destination template
                 ResourceLocation destinationLocation = new ResourceLocation(Config.rewardTemplatesPath + "/" + srcStructureName);
                 CapsuleTemplateManager destManager = StructureSaver.getRewardManager(server);
-                CapsuleTemplate destTemplate = destManager.getTemplate(server, destinationLocation);
+                CapsuleTemplate destTemplate = destManager.getMutableTemplate(server, destinationLocation);
                 // write template from source data
                 destTemplate.read(data);
                 destManager.writeTemplate(server, destinationLocation);
@@ -463,9 +638,9 @@ public class CapsuleCommand extends CommandBase {
                     //noinspection ConstantConditions
                     heldItem.getTagCompound().setString("author", args[1]);
                     Pair<CapsuleTemplateManager, CapsuleTemplate> templatepair = StructureSaver.getTemplate(heldItem, player.getServerWorld());
-                    CapsuleTemplate template = templatepair.getRight();
                     CapsuleTemplateManager templatemanager = templatepair.getLeft();
-                    if (template != null && templatemanager != null) {
+                    if (templatepair.getRight() != null && templatemanager != null) {
+                        CapsuleTemplate template = templatemanager.getMutableTemplate(server, new ResourceLocation(CapsuleItem.getStructureName(heldItem)));
                         template.setAuthor(author);
                         templatemanager.writeTemplate(server, new ResourceLocation(CapsuleItem.getStructureName(heldItem)));
                     }
@@ -475,9 +650,9 @@ public class CapsuleCommand extends CommandBase {
                     //noinspection ConstantConditions
                     heldItem.getTagCompound().removeTag("author");
                     Pair<CapsuleTemplateManager, CapsuleTemplate> templatepair = StructureSaver.getTemplate(heldItem, player.getServerWorld());
-                    CapsuleTemplate template = templatepair.getRight();
                     CapsuleTemplateManager templatemanager = templatepair.getLeft();
-                    if (template != null && templatemanager != null) {
+                    if (templatepair.getRight() != null && templatemanager != null) {
+                        CapsuleTemplate template = templatemanager.getMutableTemplate(server, new ResourceLocation(CapsuleItem.getStructureName(heldItem)));
                         template.setAuthor("?");
                         templatemanager.writeTemplate(server, new ResourceLocation(CapsuleItem.getStructureName(heldItem)));
                     }
@@ -588,7 +763,7 @@ public class CapsuleCommand extends CommandBase {
                 if (i < args.length - finalArgsCount - 1) structureNameB.append(" ");
             }
 
-            structureName = structureNameB.toString().replaceAll(".nbt", "").replaceAll(".schematic", "");
+            structureName = structureNameB.toString().replaceAll(".nbt", "").replaceAll(".schematic", "").replaceAll("\\.capsule$", "");
             return this;
         }
     }
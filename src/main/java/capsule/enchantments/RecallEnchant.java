@@ -11,15 +11,22 @@ import net.minecraft.inventory.EntityEquipmentSlot;
 import net.minecraft.item.ItemStack;
 import net.minecraft.util.ResourceLocation;
 import net.minecraft.world.WorldServer;
+import net.minecraftforge.event.entity.EntityJoinWorldEvent;
+import net.minecraftforge.event.world.WorldEvent;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 import net.minecraftforge.fml.common.gameevent.TickEvent.Phase;
 import net.minecraftforge.fml.common.gameevent.TickEvent.WorldTickEvent;
 import net.minecraftforge.fml.relauncher.Side;
 
-import java.util.List;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 
 public class RecallEnchant extends Enchantment {
 
+    /** recall enchanted items on the ground of the server worlds */
+    private final Set<EntityItem> trackedItems = new HashSet<>();
+
     protected RecallEnchant(ResourceLocation enchName, Rarity rarity, EnumEnchantmentType enchType) {
         super(rarity, enchType, EntityEquipmentSlot.values());
         this.setName("recall");
@@ -60,16 +67,38 @@ public class RecallEnchant extends Enchantment {
 
     }
 
+    /**
+     * Track the recall enchanted items when they are thrown or loaded with their chunk,
+     * so that the world tick doesn't need to check all the items of the world.
+     */
+    @SubscribeEvent
+    public void onEntityJoinWorld(EntityJoinWorldEvent event) {
+        if (event.getWorld().isRemote || !(event.getEntity() instanceof EntityItem)) return;
+        //noinspection unchecked
+        if (Enchantments.hasRecallEnchant.test(event.getEntity())) {
+            trackedItems.add((EntityItem) event.getEntity());
+        }
+    }
+
+    @SubscribeEvent
+    public void onWorldUnload(WorldEvent.Unload event) {
+        trackedItems.removeIf(entity -> entity.world == event.getWorld());
+    }
+
     @SubscribeEvent
     public void onWorldTickEvent(WorldTickEvent wte) {
 
-        if (wte.side == Side.CLIENT || wte.phase != Phase.END)
+        if (wte.side == Side.CLIENT || wte.phase != Phase.END || trackedItems.isEmpty())
             return;
 
         WorldServer world = (WorldServer) wte.world;
-        @SuppressWarnings("unchecked")
-        List<EntityItem> recallEntities = world.<EntityItem>getEntities(EntityItem.class, Enchantments.hasRecallEnchant::test);
-        for (EntityItem entity : recallEntities) {
+        for (EntityItem entity : new ArrayList<>(trackedItems)) {
+            if (entity.world != world) continue;
+            // picked up, despawned, unloaded with its chunk or never actually spawned
+            if (entity.isDead || world.getEntityFromUuid(entity.getUniqueID()) != entity) {
+                trackedItems.remove(entity);
+                continue;
+            }
             if (!Strings.isNullOrEmpty(entity.getThrower()) && (entity.collided || Spacial.entityItemShouldAndCollideLiquid(entity))) {
                 // give the item a last tick
                 if (!entity.isInLava()) {
@@ -0,0 +1,55 @@
+package capsule.helpers;
+
+import net.minecraft.block.Block;
+
+import java.util.*;
+
+/**
+ * Set of blocks backed by a bitset over the block registry ids, so that checking a block is a single id lookup
+ * whatever the size of the set. Ids can change when joining a server, {@link #rebuild()} must be called then.
+ */
+public class BlockSet extends AbstractSet<Block> {
+
+    private final List<Block> blocks;
+    private volatile BitSet ids;
+
+    public BlockSet(Collection<Block> blocks) {
+        this.blocks = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(blocks)));
+        rebuild();
+    }
+
+    public static BlockSet of(Block... blocks) {
+        return new BlockSet(Arrays.asList(blocks));
+    }
+
+    /**
+     * Read the blocks registry ids again.
+     */
+    public void rebuild() {
+        BitSet rebuilt = new BitSet();
+        for (Block block : blocks) {
+            int id = Block.getIdFromBlock(block);
+            if (id >= 0) rebuilt.set(id);
+        }
+        ids = rebuilt;
+    }
+
+    public boolean containsId(int blockId) {
+        return blockId >= 0 && ids.get(blockId);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Block && containsId(Block.getIdFromBlock((Block) o));
+    }
+
+    @Override
+    public Iterator<Block> iterator() {
+        return blocks.iterator();
+    }
+
+    @Override
+    public int size() {
+        return blocks.size();
+    }
+}
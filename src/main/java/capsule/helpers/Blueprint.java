@@ -5,6 +5,7 @@ import capsule.StructureSaver;
 import capsule.StructureSaver.ItemStackKey;
 import capsule.recipes.PrefabsBlueprintCapsuleRecipe;
 import capsule.structure.CapsuleTemplate;
+import capsule.structure.CapsuleTemplateHeader;
 import capsule.structure.CapsuleTemplateManager;
 import com.google.gson.JsonObject;
 import net.minecraft.block.*;
@@ -223,16 +224,24 @@ public class Blueprint {
             // get the minimum amount of ingredient without conflicts for each recipe
             CapsuleTemplateManager tempManager = new CapsuleTemplateManager(Config.configDir.getParentFile().getParentFile().getPath(), FMLCommonHandler.instance().getDataFixer());
             enabledPrefabsTemplatesList = getModEnabledTemplates(prefabsTemplatesList);
+            // headers of .capsule files are read before the full templates get loaded to list their ingredients
+            Map<String, CapsuleTemplateHeader> headers = new HashMap<>();
+            for (String templateName : enabledPrefabsTemplatesList) {
+                CapsuleTemplateHeader header = tempManager.getFileHeader(new ResourceLocation(templateName));
+                if (header != null) headers.put(templateName, header);
+            }
             templatesByIngrendients = sortTemplatesByIngredients(enabledPrefabsTemplatesList, tempManager);
             reduced = reduceIngredientCount(templatesByIngrendients);
 
             reduced.forEach((ingredients, templateName) -> {
-                CapsuleTemplate template = tempManager.get(null, new ResourceLocation(templateName));
+                CapsuleTemplateHeader template = headers.containsKey(templateName)
+                        ? headers.get(templateName)
+                        : tempManager.getHeader(null, new ResourceLocation(templateName));
                 JsonObject jsonRecipe = Files.copy(referenceRecipe);
                 if (jsonRecipe != null && template != null) {
                     jsonRecipe.getAsJsonObject("result").getAsJsonObject("nbt").addProperty("structureName", templateName);
                     jsonRecipe.getAsJsonObject("result").getAsJsonObject("nbt").addProperty("label", Capsule.labelFromPath(templateName));
-                    int size = Math.max(template.getSize().getX(), Math.max(template.getSize().getY(), template.getSize().getZ()));
+                    int size = template.getMaxSide();
                     jsonRecipe.getAsJsonObject("result").getAsJsonObject("nbt").addProperty("size", size);
                     PrefabsBlueprintCapsuleRecipe templateRecipe = new PrefabsBlueprintCapsuleRecipe(jsonRecipe, ingredients);
                     event.getRegistry().register(templateRecipe.setRegistryName("capsule:" + templateName));
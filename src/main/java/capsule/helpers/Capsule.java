@@ -8,7 +8,9 @@ import capsule.items.CapsuleItem;
 import capsule.items.CapsuleItems;
 import capsule.loot.CapsuleLootEntry;
 import capsule.network.CapsuleUndeployNotifToClient;
+import capsule.structure.CapsuleTaskScheduler;
 import capsule.structure.CapsuleTemplate;
+import capsule.structure.CapsuleTemplateHeader;
 import capsule.structure.CapsuleTemplateManager;
 import net.minecraft.block.Block;
 import net.minecraft.client.multiplayer.WorldClient;
@@ -41,14 +43,21 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nullable;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 public class Capsule {
 
     protected static final Logger LOGGER = LogManager.getLogger(Capsule.class);
+    private static final long IN_FLIGHT_TEMPLATE_PIN_MILLIS = 30000;
+    /**
+     * Number of positions listed when a blueprint can't be undeployed.
+     */
+    private static final int BLUEPRINT_MISMATCHES_SHOWN = 5;
 
     static public String getMirrorLabel(PlacementSettings placement) {
         switch (placement.getMirror()) {
@@ -87,27 +96,36 @@ public class Capsule {
 
         // do the transportation
         if (CapsuleItem.isBlueprint(capsule)) {
-            boolean blueprintMatch = StructureSaver.undeployBlueprint(world, playerIn.getName(), capsule, startPos, size, CapsuleItem.getExcludedBlocs(capsule));
+            List<BlockPos> mismatches = new ArrayList<>();
+            boolean blueprintMatch = StructureSaver.undeployBlueprint(world, playerIn.getName(), capsule, startPos, size, CapsuleItem.getExcludedBlocs(capsule), mismatches);
             if (blueprintMatch) {
                 CapsuleItem.setState(capsule, CapsuleItem.STATE_BLUEPRINT);
                 CapsuleItem.cleanDeploymentTags(capsule);
                 notifyUndeploy(playerIn, startPos, size);
             } else {
                 playerIn.sendMessage(new TextComponentTranslation("capsule.error.blueprintDontMatch"));
+                if (!mismatches.isEmpty()) {
+                    playerIn.sendMessage(new TextComponentTranslation("capsule.error.blueprintMismatches", mismatches.size(), mismatches.stream()
+                            .limit(BLUEPRINT_MISMATCHES_SHOWN)
+                            .map(pos -> pos.getX() + " " + pos.getY() + " " + pos.getZ())
+                            .collect(Collectors.joining(", "))));
+                }
             }
         } else {
-            CapsuleTemplate template = StructureSaver.undeploy(world, playerIn.getName(), capsule.getTagCompound().getString("structureName"), startPos, size, CapsuleItem.getExcludedBlocs(capsule), CapsuleItem.getOccupiedSourcePos(capsule));
-            boolean storageOK = template != null;
-            if (storageOK) {
-                CapsuleItem.setState(capsule, CapsuleItem.STATE_LINKED);
-                CapsuleItem.cleanDeploymentTags(capsule);
-                CapsuleItem.setCanRotate(capsule, template.canRotate());
-                CapsuleItem.setPlacement(capsule, new PlacementSettings());
-                notifyUndeploy(playerIn, startPos, size);
-            } else {
-                LOGGER.error("Error occured during undeploy of capsule.");
-                playerIn.sendMessage(new TextComponentTranslation("capsule.error.technicalError"));
-            }
+            // big captures run over several ticks, the capsule is updated once it is over
+            StructureSaver.undeploy(world, playerIn.getName(), capsule.getTagCompound().getString("structureName"), startPos, size, CapsuleItem.getExcludedBlocs(capsule), CapsuleItem.getOccupiedSourcePos(capsule), capsule, template -> {
+                boolean storageOK = template != null;
+                if (storageOK) {
+                    CapsuleItem.setState(capsule, CapsuleItem.STATE_LINKED);
+                    CapsuleItem.cleanDeploymentTags(capsule);
+                    CapsuleItem.setCanRotate(capsule, template.canRotate());
+                    CapsuleItem.setPlacement(capsule, new PlacementSettings());
+                    notifyUndeploy(playerIn, startPos, size);
+                } else {
+                    LOGGER.error("Error occured during undeploy of capsule.");
+                    playerIn.sendMessage(new TextComponentTranslation("capsule.error.technicalError"));
+                }
+            });
         }
     }
 
@@ -140,7 +158,13 @@ public class Capsule {
         // do the transportation
         List<String> outEntityBlocking = new ArrayList<>();
 
-        boolean result = StructureSaver.deploy(capsule, world, thrower, dest, Config.overridableBlocks, outEntityBlocking, CapsuleItem.getPlacement(capsule));
+        boolean result = StructureSaver.deploy(capsule, world, thrower, dest, Config.overridableBlocks, outEntityBlocking, CapsuleItem.getPlacement(capsule), () -> {
+            // deploy of a big capsule failed after the capsule was set as deployed
+            if (!CapsuleItem.isReward(capsule)) {
+                CapsuleItem.cleanDeploymentTags(capsule);
+                CapsuleItem.revertStateFromActivated(capsule);
+            }
+        });
 
         if (result) {
             // register the link in the capsule
@@ -191,21 +215,21 @@ public class Capsule {
         if (thrower != null) {
             player = thrower;
         }
+        if (CapsuleTaskScheduler.isBusy(capsule)) return false;
         String capsuleID = StructureSaver.getUniqueName(playerWorld, player);
-        CapsuleTemplate template = StructureSaver.undeploy(playerWorld, player, capsuleID, source, size, CapsuleItem.getExcludedBlocs(capsule), null);
-        boolean storageOK = template != null;
-        if (storageOK) {
-            // register the link in the capsule
-            CapsuleItem.setState(capsule, CapsuleItem.STATE_LINKED);
-            CapsuleItem.setStructureName(capsule, capsuleID);
-            CapsuleItem.setCanRotate(capsule, template.canRotate());
-            CapsuleItem.setPlacement(capsule, new PlacementSettings());
-            return true;
-        } else {
-            // could not capture, StructureSaver.undeploy handles the feedback already
-            CapsuleItem.revertStateFromActivated(capsule);
-        }
-        return false;
+        // not activated anymore while the capture runs, so that it is not triggered again
+        CapsuleItem.revertStateFromActivated(capsule);
+        return StructureSaver.undeploy(playerWorld, player, capsuleID, source, size, CapsuleItem.getExcludedBlocs(capsule), null, capsule, template -> {
+            boolean storageOK = template != null;
+            if (storageOK) {
+                // register the link in the capsule
+                CapsuleItem.setState(capsule, CapsuleItem.STATE_LINKED);
+                CapsuleItem.setStructureName(capsule, capsuleID);
+                CapsuleItem.setCanRotate(capsule, template.canRotate());
+                CapsuleItem.setPlacement(capsule, new PlacementSettings());
+            }
+            // else could not capture, StructureSaver.undeploy handles the feedback already
+        });
     }
 
     public static void showUndeployParticules(WorldClient world, BlockPos posFrom, BlockPos posTo, int size) {
@@ -316,6 +340,13 @@ public class Capsule {
 
         if (destination != null && capsule.getTagCompound() != null) {
             capsule.getTagCompound().setLong("deployAt", destination.toLong());
+            if (playerIn.getEntityWorld() instanceof WorldServer && CapsuleItem.hasStructureLink(capsule)) {
+                // content will be needed on landing, make sure it is not unloaded meanwhile
+                StructureSaver.pinTemplate(capsule, (WorldServer) playerIn.getEntityWorld(), IN_FLIGHT_TEMPLATE_PIN_MILLIS);
+                // check the destination while the capsule flies, same destination as in deployCapsule
+                int extendLength = (CapsuleItem.getSize(capsule) - 1) / 2;
+                StructureSaver.startDestinationCheck(capsule, (WorldServer) playerIn.getEntityWorld(), destination.add(-extendLength, 0, -extendLength));
+            }
 
             Spacial.moveEntityItemToDeployPos(entityitem, capsule, false);
             BlockPos playerPos = playerIn.getPosition();
@@ -395,6 +426,8 @@ public class Capsule {
             // is linked, deploy
             BlockPos throwPos = Spacial.findBottomBlock(entityItem);
             boolean deployed = deployCapsule(capsule, throwPos, entityItem.getThrower(), extendLength, itemWorld);
+            // deployed or not, the template pinned for the flight is not needed anymore
+            StructureSaver.unpinTemplate(capsule, itemWorld);
             if (deployed) {
                 itemWorld.playSound(null, entityItem.getPosition(), SoundEvents.ENTITY_IRONGOLEM_ATTACK, SoundCategory.BLOCKS, 0.4F, 0.1F);
                 showDeployParticules(itemWorld, entityItem.getPosition(), size);
@@ -434,10 +467,11 @@ public class Capsule {
     public static ItemStack createLinkedCapsuleFromReward(String srcStructurePath, EntityPlayerMP player) {
         if (player == null) return ItemStack.EMPTY;
 
-        CapsuleTemplate srcTemplate = getRewardTemplateIfExists(srcStructurePath, player.getServer());
-        if (srcTemplate == null) return ItemStack.EMPTY;
+        CapsuleTemplateManager rewardManager = StructureSaver.getRewardManager(player.getServer());
+        CapsuleTemplateHeader srcHeader = rewardManager.getHeader(player.getServer(), new ResourceLocation(srcStructurePath));
+        if (srcHeader == null) return ItemStack.EMPTY;
 
-        int size = Math.max(srcTemplate.getSize().getX(), Math.max(srcTemplate.getSize().getY(), srcTemplate.getSize().getZ()));
+        int size = srcHeader.getMaxSide();
         if (size % 2 == 0)
             size++;
 
@@ -452,12 +486,23 @@ public class Capsule {
                 0
         );
 
+        CapsuleTemplateManager destManager = StructureSaver.getTemplateManager(player.getServerWorld());
+        // a reward in the capsule format is shared as is, without reading its content
+        File srcFile = srcHeader.getContentHash() == null ? null : rewardManager.getContentFile(new ResourceLocation(srcStructurePath));
+        if (srcFile != null && destManager != null
+                && destManager.writeSharedReference(player.getServer(), new ResourceLocation(destStructureName), srcHeader.getContentHash(), srcFile)) {
+            return capsule;
+        }
+
+        // legacy formats are copied
+        CapsuleTemplate srcTemplate = getRewardTemplateIfExists(srcStructurePath, player.getServer());
+        if (srcTemplate == null) return ItemStack.EMPTY;
         NBTTagCompound srcData = new NBTTagCompound();
         srcTemplate.writeToNBT(srcData);
         StructureSaver.duplicateTemplate(
                 srcData,
                 destStructureName,
-                StructureSaver.getTemplateManager(player.getServerWorld()),
+                destManager,
                 player.getServer()
         );
         return capsule;
@@ -476,7 +521,7 @@ public class Capsule {
             LOGGER.error("getTemplateManager returned null");
             return false;
         }
-        CapsuleTemplate template = templatemanager.getTemplate(minecraftserver, new ResourceLocation(capsuleStructureId));
+        CapsuleTemplate template = templatemanager.getMutableTemplate(minecraftserver, new ResourceLocation(capsuleStructureId));
 
         List<Template.BlockInfo> blocks = template.blocks;
         List<Template.EntityInfo> entities = template.entities;
@@ -1,6 +1,7 @@
 package capsule.helpers;
 
 import capsule.loot.LootPathData;
+import capsule.structure.CapsuleTemplateFormat;
 import com.google.gson.*;
 import net.minecraft.util.JsonUtils;
 import net.minecraft.util.StringUtils;
@@ -180,9 +181,9 @@ public class Files {
                 while (iterator.hasNext()) {
                     Path path = iterator.next();
                     File file = path.toFile();
-                    if (file.isFile() && (file.getName().endsWith(".nbt") || file.getName().endsWith(".schematic"))) {
+                    if (file.isFile() && (file.getName().endsWith(".nbt") || file.getName().endsWith(".schematic") || file.getName().endsWith(CapsuleTemplateFormat.EXTENSION))) {
                         Path relative = templateFolder.toPath().relativize(path);
-                        onTemplateFound.accept(relative.toString().replaceAll("\\\\", "/").replaceAll(".nbt", "").replaceAll(".schematic", ""));
+                        onTemplateFound.accept(relative.toString().replaceAll("\\\\", "/").replaceAll(".nbt", "").replaceAll(".schematic", "").replaceAll("\\.capsule$", ""));
                     }
                 }
             } catch (IOException e) {
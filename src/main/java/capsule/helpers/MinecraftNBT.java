@@ -1,7 +1,7 @@
 package capsule.helpers;
 
 import net.minecraft.item.ItemStack;
-import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.*;
 
 public class MinecraftNBT {
     /**
@@ -48,4 +48,35 @@ public class MinecraftNBT {
 
         nbttagcompound1.setInteger("color", color);
     }
+
+    /**
+     * Rough estimation of the heap used by a tag, in bytes.
+     */
+    public static long estimateSize(NBTBase nbt) {
+        if (nbt == null) return 0;
+        switch (nbt.getId()) {
+            case 7: // byte array
+                return 16 + ((NBTTagByteArray) nbt).getByteArray().length;
+            case 8: // string
+                return 40 + 2 * ((NBTTagString) nbt).getString().length();
+            case 9: // list
+                NBTTagList list = (NBTTagList) nbt;
+                long listSize = 32;
+                for (int i = 0; i < list.tagCount(); i++) {
+                    listSize += 8 + estimateSize(list.get(i));
+                }
+                return listSize;
+            case 10: // compound
+                NBTTagCompound compound = (NBTTagCompound) nbt;
+                long compoundSize = 48;
+                for (String key : compound.getKeySet()) {
+                    compoundSize += 72 + 2 * key.length() + estimateSize(compound.getTag(key));
+                }
+                return compoundSize;
+            case 11: // int array
+                return 16 + 4 * ((NBTTagIntArray) nbt).getIntArray().length;
+            default:
+                return 16;
+        }
+    }
 }
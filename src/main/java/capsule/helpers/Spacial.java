@@ -12,7 +12,9 @@ import net.minecraft.world.gen.structure.template.Template;
 
 import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -78,7 +80,106 @@ public class Spacial {
         return null;
     }
 
+    /**
+     * Merge the blocks into as few boxes as possible, a box containing only one kind of block.
+     * Greedy meshing over a grid of the blocks bounds: from each cell not merged yet, a box grows along X, then Z, then Y
+     * as long as it only covers cells of the same block not merged yet.
+     *
+     * @return boxes from their min to their max block position, in template coordinates
+     */
     public static List<AxisAlignedBB> mergeVoxels(List<Template.BlockInfo> blocks) {
+        return mergeVoxels(blocks, null);
+    }
+
+    /**
+     * @param outBlocks if not null, filled with the block of each returned box
+     */
+    public static List<AxisAlignedBB> mergeVoxels(List<Template.BlockInfo> blocks, @Nullable List<Block> outBlocks) {
+        List<AxisAlignedBB> boxes = new ArrayList<>();
+        if (blocks.isEmpty()) return boxes;
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (Template.BlockInfo block : blocks) {
+            minX = Math.min(minX, block.pos.getX());
+            minY = Math.min(minY, block.pos.getY());
+            minZ = Math.min(minZ, block.pos.getZ());
+            maxX = Math.max(maxX, block.pos.getX());
+            maxY = Math.max(maxY, block.pos.getY());
+            maxZ = Math.max(maxZ, block.pos.getZ());
+        }
+        int sizeX = maxX - minX + 1;
+        int sizeY = maxY - minY + 1;
+        int sizeZ = maxZ - minZ + 1;
+
+        // cells hold the block kind + 1, 0 for empty or already merged cells. Index is x, then z, then y.
+        int[] grid = new int[sizeX * sizeY * sizeZ];
+        Map<Block, Integer> kinds = new IdentityHashMap<>();
+        List<Block> kindBlocks = new ArrayList<>();
+        for (Template.BlockInfo block : blocks) {
+            Integer kind = kinds.computeIfAbsent(block.blockState.getBlock(), k -> {
+                kindBlocks.add(k);
+                return kindBlocks.size();
+            });
+            grid[((block.pos.getY() - minY) * sizeZ + (block.pos.getZ() - minZ)) * sizeX + (block.pos.getX() - minX)] = kind;
+        }
+
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                for (int x = 0; x < sizeX; x++) {
+                    int start = (y * sizeZ + z) * sizeX + x;
+                    int kind = grid[start];
+                    if (kind == 0) continue;
+
+                    int width = 1;
+                    while (x + width < sizeX && grid[start + width] == kind) {
+                        width++;
+                    }
+                    int depth = 1;
+                    while (z + depth < sizeZ && isRowOf(grid, start + depth * sizeX, width, kind)) {
+                        depth++;
+                    }
+                    int height = 1;
+                    while (y + height < sizeY && isRectangleOf(grid, start + height * sizeX * sizeZ, width, depth, sizeX, kind)) {
+                        height++;
+                    }
+
+                    for (int h = 0; h < height; h++) {
+                        for (int d = 0; d < depth; d++) {
+                            int rowStart = start + h * sizeX * sizeZ + d * sizeX;
+                            Arrays.fill(grid, rowStart, rowStart + width, 0);
+                        }
+                    }
+                    boxes.add(new AxisAlignedBB(
+                            new BlockPos(minX + x, minY + y, minZ + z),
+                            new BlockPos(minX + x + width - 1, minY + y + height - 1, minZ + z + depth - 1)
+                    ));
+                    if (outBlocks != null) outBlocks.add(kindBlocks.get(kind - 1));
+                }
+            }
+        }
+        return boxes;
+    }
+
+    private static boolean isRowOf(int[] grid, int rowStart, int width, int kind) {
+        for (int i = rowStart; i < rowStart + width; i++) {
+            if (grid[i] != kind) return false;
+        }
+        return true;
+    }
+
+    private static boolean isRectangleOf(int[] grid, int rectangleStart, int width, int depth, int sizeX, int kind) {
+        for (int d = 0; d < depth; d++) {
+            if (!isRowOf(grid, rectangleStart + d * sizeX, width, kind)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Previous implementation of {@link #mergeVoxels(List)}, merging columns of the same block then neighbor boxes of the same height.
+     * Only kept to be compared with in the benchmark command.
+     */
+    public static List<AxisAlignedBB> mergeVoxelsByColumns(List<Template.BlockInfo> blocks) {
 
         Map<BlockPos, Template.BlockInfo> blocksByPos = new HashMap<>();
         Map<BlockPos, StructureBoundingBox> bbByPos = new HashMap<>();
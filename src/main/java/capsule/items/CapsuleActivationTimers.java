@@ -0,0 +1,109 @@
+package capsule.items;
+
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.init.SoundEvents;
+import net.minecraft.item.ItemStack;
+import net.minecraft.util.SoundCategory;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Server side timer wheel reverting the activated capsules to their previous state once the activation expired.
+ * A timer is put in the wheel slot of its expiry tick when the capsule is activated, each server tick only looks at
+ * the timers of the current slot. The capsule is then searched in the inventory slot it was activated from,
+ * or in the rest of the player inventory if it was moved.
+ * Capsules that were activated and are not tracked anymore (thrown, stored, copied by a container, logged out)
+ * are reverted by CapsuleItem.onUpdate when found in an inventory again.
+ *
+ * @author Lythom
+ */
+@Mod.EventBusSubscriber
+public class CapsuleActivationTimers {
+
+    /** greater than the activation duration, so timers expire within one turn of the wheel */
+    private static final int WHEEL_SIZE = 64;
+
+    @SuppressWarnings("unchecked")
+    private static final List<Timer>[] wheel = new List[WHEEL_SIZE];
+    private static final Map<ItemStack, Timer> timers = new IdentityHashMap<>();
+    private static long currentTick = 0;
+
+    private static class Timer {
+        private final EntityPlayer player;
+        private final int slot;
+        private final ItemStack capsule;
+        private final long expiryTick;
+
+        private Timer(EntityPlayer player, int slot, ItemStack capsule, long expiryTick) {
+            this.player = player;
+            this.slot = slot;
+            this.capsule = capsule;
+            this.expiryTick = expiryTick;
+        }
+    }
+
+    /**
+     * Revert the capsule from its activated state after that number of ticks, replacing any previous timer of that capsule.
+     */
+    public static void schedule(EntityPlayer player, ItemStack capsule, int delayInTicks) {
+        cancel(capsule);
+        Timer timer = new Timer(player, findSlot(player, capsule), capsule, currentTick + Math.max(1, delayInTicks));
+        int index = (int) (timer.expiryTick % WHEEL_SIZE);
+        if (wheel[index] == null) wheel[index] = new ArrayList<>();
+        wheel[index].add(timer);
+        timers.put(capsule, timer);
+    }
+
+    public static void cancel(ItemStack capsule) {
+        Timer timer = timers.remove(capsule);
+        if (timer != null) {
+            wheel[(int) (timer.expiryTick % WHEEL_SIZE)].remove(timer);
+        }
+    }
+
+    public static boolean isScheduled(ItemStack capsule) {
+        return timers.containsKey(capsule);
+    }
+
+    public static int getPendingCount() {
+        return timers.size();
+    }
+
+    @SubscribeEvent
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase != TickEvent.Phase.END) return;
+        currentTick++;
+        List<Timer> expiring = wheel[(int) (currentTick % WHEEL_SIZE)];
+        if (expiring == null || expiring.isEmpty()) return;
+        for (Timer timer : new ArrayList<>(expiring)) {
+            if (timer.expiryTick > currentTick) continue;
+            expiring.remove(timer);
+            timers.remove(timer.capsule);
+            expire(timer);
+        }
+    }
+
+    private static void expire(Timer timer) {
+        ItemStack capsule = timer.capsule;
+        // only if still activated and in the inventory of the player
+        if (!CapsuleItem.isActivated(capsule) || timer.player.isDead
+                || (timer.slot < 0 || timer.player.inventory.getStackInSlot(timer.slot) != capsule) && findSlot(timer.player, capsule) < 0) {
+            return;
+        }
+        CapsuleItem.revertStateFromActivated(capsule);
+        timer.player.getEntityWorld().playSound(null, timer.player.getPosition(), SoundEvents.BLOCK_STONE_BUTTON_CLICK_OFF, SoundCategory.BLOCKS, 0.2F, 0.4F);
+    }
+
+    private static int findSlot(EntityPlayer player, ItemStack capsule) {
+        for (int i = 0; i < player.inventory.getSizeInventory(); i++) {
+            if (player.inventory.getStackInSlot(i) == capsule) return i;
+        }
+        return -1;
+    }
+}
@@ -4,13 +4,15 @@ import capsule.CommonProxy;
 import capsule.Config;
 import capsule.Main;
 import capsule.StructureSaver;
-import capsule.client.CapsulePreviewHandler;
+import capsule.client.CapsulePreviewCache;
+import capsule.helpers.BlockSet;
 import capsule.helpers.Capsule;
 import capsule.helpers.MinecraftNBT;
 import capsule.helpers.Spacial;
 import capsule.network.CapsuleContentPreviewQueryToServer;
 import capsule.network.CapsuleLeftClickQueryToServer;
 import capsule.network.CapsuleThrowQueryToServer;
+import capsule.structure.CapsuleTaskScheduler;
 import net.minecraft.block.Block;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.util.ITooltipFlag;
@@ -296,7 +298,7 @@ public class CapsuleItem extends Item {
         return stack.hasTagCompound() && stack.getTagCompound().hasKey("overpowered") && stack.getTagCompound().getByte("overpowered") == (byte) 1;
     }
 
-    private static boolean isActivated(ItemStack capsule) {
+    public static boolean isActivated(ItemStack capsule) {
         return capsule.getItemDamage() == STATE_ACTIVATED || capsule.getItemDamage() == STATE_EMPTY_ACTIVATED
                 || capsule.getItemDamage() == STATE_ONE_USE_ACTIVATED;
     }
@@ -511,7 +513,7 @@ public class CapsuleItem extends Item {
 
     @SideOnly(Side.CLIENT)
     public void askPreviewIfNeeded(ItemStack stack) {
-        if (!CapsulePreviewHandler.currentPreview.containsKey(getStructureName(stack))) {
+        if (CapsulePreviewCache.markRequested(getStructureName(stack))) {
             // try to get the preview from server
             CommonProxy.simpleNetworkWrapper.sendToServer(new CapsuleContentPreviewQueryToServer(getStructureName(stack)));
         }
@@ -596,6 +598,8 @@ public class CapsuleItem extends Item {
     }
 
     public void activateCapsule(ItemStack capsule, World worldIn, EntityPlayer playerIn) {
+        // still busy deploying or capturing over several ticks
+        if (CapsuleTaskScheduler.isBusy(capsule)) return;
         if (capsule.getItemDamage() == STATE_EMPTY) {
             setState(capsule, STATE_EMPTY_ACTIVATED);
             startTimer(worldIn, playerIn, capsule);
@@ -620,30 +624,24 @@ public class CapsuleItem extends Item {
     private void startTimer(World worldIn, EntityPlayer playerIn, ItemStack capsule) {
         NBTTagCompound timer = capsule.getOrCreateSubCompound("activetimer");
         timer.setInteger("starttime", playerIn.ticksExisted);
+        if (!worldIn.isRemote) {
+            CapsuleActivationTimers.schedule(playerIn, capsule, ACTIVE_DURATION_IN_TICKS);
+        }
         worldIn.playSound(null, playerIn.getPosition(), SoundEvents.BLOCK_STONE_BUTTON_CLICK_ON, SoundCategory.BLOCKS, 0.2F, 0.9F);
     }
 
 
     /**
-     * Manage the "activated" state of the capsule.
+     * Manage the "activated" state of the capsule. The activation expiry is scheduled in CapsuleActivationTimers,
+     * this only reverts the activated capsules that are not timed anymore (moved to another inventory, reloaded, crash).
      */
     @Override
     public void onUpdate(ItemStack stack, World worldIn, Entity entityIn, int itemSlot, boolean isSelected) {
         super.onUpdate(stack, worldIn, entityIn, itemSlot, isSelected);
 
-        if (!worldIn.isRemote) {
-
-            // disable capsule after some time
-            NBTTagCompound timer = stack.getSubCompound("activetimer");
-
-            if (timer != null && isActivated(stack) && timer.hasKey("starttime") && entityIn.ticksExisted >= timer.getInteger("starttime") + ACTIVE_DURATION_IN_TICKS) {
-                revertStateFromActivated(stack);
-                worldIn.playSound(null, entityIn.getPosition(), SoundEvents.BLOCK_STONE_BUTTON_CLICK_OFF, SoundCategory.BLOCKS, 0.2F, 0.4F);
-            }
-            // special case that can happen in case of crash
-            if (isActivated(stack) && !timer.hasKey("starttime")) {
-                revertStateFromActivated(stack);
-            }
+        if (!worldIn.isRemote && isActivated(stack) && !CapsuleActivationTimers.isScheduled(stack)) {
+            revertStateFromActivated(stack);
+            worldIn.playSound(null, entityIn.getPosition(), SoundEvents.BLOCK_STONE_BUTTON_CLICK_OFF, SoundCategory.BLOCKS, 0.2F, 0.4F);
         }
     }
 
@@ -709,8 +707,8 @@ public class CapsuleItem extends Item {
         capsule.getTagCompound().removeTag("occupiedSpawnPositions"); // don't need anymore those data
     }
 
-    public static List<Block> getExcludedBlocs(ItemStack stack) {
-        List<Block> excludedBlocks = Config.excludedBlocks;
+    public static BlockSet getExcludedBlocs(ItemStack stack) {
+        BlockSet excludedBlocks = Config.excludedBlocks;
         if (isOverpowered(stack)) {
             excludedBlocks = Config.opExcludedBlocks;
         }
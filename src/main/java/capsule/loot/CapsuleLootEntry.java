@@ -5,10 +5,12 @@ import capsule.StructureSaver;
 import capsule.helpers.Capsule;
 import capsule.helpers.Files;
 import capsule.items.CapsuleItem;
-import capsule.structure.CapsuleTemplate;
+import capsule.structure.CapsuleTemplateHeader;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSerializationContext;
 import net.minecraft.item.ItemStack;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.ResourceLocation;
 import net.minecraft.world.storage.loot.LootContext;
 import net.minecraft.world.storage.loot.LootEntry;
 import net.minecraft.world.storage.loot.conditions.LootCondition;
@@ -56,14 +58,14 @@ public class CapsuleLootEntry extends LootEntry {
 
         if (LootConditionManager.testAllConditions(this.conditions, rand, context) && Config.lootTemplatesData.containsKey(this.templatesPath)) {
 
-            Pair<String, CapsuleTemplate> templatePair = getRandomTemplate(context);
+            Pair<String, CapsuleTemplateHeader> templatePair = getRandomTemplate(context);
 
             if (templatePair != null) {
-                CapsuleTemplate template = templatePair.getRight();
+                CapsuleTemplateHeader template = templatePair.getRight();
                 String templatePath = templatePair.getLeft();
-                int size = Math.max(template.getSize().getX(), Math.max(template.getSize().getY(), template.getSize().getZ()));
+                int size = template.getMaxSide();
 
-                if (template.entities.isEmpty() && Config.allowBlueprintReward) {
+                if (!template.hasEntities() && Config.allowBlueprintReward) {
                     // blueprint if there is no entities in the capsule
                     ItemStack capsule = Capsule.newLinkedCapsuleItemStack(
                             templatePath,
@@ -97,7 +99,7 @@ public class CapsuleLootEntry extends LootEntry {
     }
 
     @Nullable
-    public Pair<String, CapsuleTemplate> getRandomTemplate(LootContext context) {
+    public Pair<String, CapsuleTemplateHeader> getRandomTemplate(LootContext context) {
         LootPathData lpd = Config.lootTemplatesData.get(this.templatesPath);
         if (lpd == null || lpd.files == null) {
             Files.populateAndLoadLootList(Config.configDir, Config.lootTemplatesPaths, Config.lootTemplatesData);
@@ -107,11 +109,13 @@ public class CapsuleLootEntry extends LootEntry {
 
         int size = lpd.files.size();
         int initRand = random.nextInt(size);
+        MinecraftServer server = context.getWorld().getMinecraftServer();
 
         for (int i = 0; i < lpd.files.size(); i++) {
             int ri = (initRand + i) % lpd.files.size();
             String structureName = lpd.files.get(ri);
-            CapsuleTemplate template = StructureSaver.getTemplateForReward(context.getWorld().getMinecraftServer(), this.templatesPath + "/" + structureName).getRight();
+            // only metadata is needed to create the capsule item
+            CapsuleTemplateHeader template = StructureSaver.getRewardManager(server).getHeader(server, new ResourceLocation(this.templatesPath + "/" + structureName));
             if (template != null) return Pair.of(this.templatesPath + "/" + structureName, template);
         }
         return null;
@@ -0,0 +1,134 @@
+package capsule.network;
+
+import net.minecraft.util.math.AxisAlignedBB;
+import net.minecraft.util.math.BlockPos;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content preview of a capsule: the template blocks merged into boxes, and optionally the block id of each box.
+ * <p>
+ * Encoded as a deflate stream containing the number of boxes, flags, then for each box the delta of its min corner
+ * from the previous box min corner (zigzag varints) and its size minus one on each axis (varints),
+ * followed by its block registry id (varint) if the flags say so. The encoded bytes are sent in
+ * {@link CapsulePreviewFragmentToClient} fragments.
+ *
+ * @author Lythom
+ */
+public class CapsulePreview {
+
+    /** version of the encoding, sent with each fragment. */
+    public static final int PROTOCOL_VERSION = 2;
+    private static final int FLAG_BLOCK_IDS = 1;
+    /** the decoded preview can't be bigger than a full capsule of single blocks. */
+    private static final int MAX_BOXES = 255 * 255 * 255;
+
+    private final List<AxisAlignedBB> boxes;
+    @Nullable
+    private final int[] blockIds;
+    @Nullable
+    private byte[] encoded = null;
+
+    /**
+     * @param blockIds block registry id of each box, or null
+     */
+    public CapsulePreview(List<AxisAlignedBB> boxes, @Nullable int[] blockIds) {
+        this.boxes = Collections.unmodifiableList(boxes);
+        this.blockIds = blockIds;
+    }
+
+    public List<AxisAlignedBB> getBoxes() {
+        return boxes;
+    }
+
+    @Nullable
+    public int[] getBlockIds() {
+        return blockIds;
+    }
+
+    /**
+     * @return the compressed encoding, computed once.
+     */
+    public synchronized byte[] getEncoded() throws IOException {
+        if (encoded == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+                write(out);
+            }
+            encoded = bytes.toByteArray();
+        }
+        return encoded;
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        writeVarInt(out, boxes.size());
+        out.writeByte(blockIds != null ? FLAG_BLOCK_IDS : 0);
+        int lastX = 0, lastY = 0, lastZ = 0;
+        for (int i = 0; i < boxes.size(); i++) {
+            AxisAlignedBB bb = boxes.get(i);
+            int x = (int) bb.minX, y = (int) bb.minY, z = (int) bb.minZ;
+            writeVarInt(out, zigzag(x - lastX));
+            writeVarInt(out, zigzag(y - lastY));
+            writeVarInt(out, zigzag(z - lastZ));
+            writeVarInt(out, (int) bb.maxX - x);
+            writeVarInt(out, (int) bb.maxY - y);
+            writeVarInt(out, (int) bb.maxZ - z);
+            if (blockIds != null) writeVarInt(out, blockIds[i]);
+            lastX = x;
+            lastY = y;
+            lastZ = z;
+        }
+    }
+
+    public static CapsulePreview decode(byte[] encoded) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(encoded))))) {
+            int count = readVarInt(in);
+            if (count < 0 || count > MAX_BOXES) throw new IOException("Invalid capsule preview size " + count);
+            boolean hasBlockIds = (in.readByte() & FLAG_BLOCK_IDS) != 0;
+            List<AxisAlignedBB> boxes = new ArrayList<>(count);
+            int[] blockIds = hasBlockIds ? new int[count] : null;
+            int x = 0, y = 0, z = 0;
+            for (int i = 0; i < count; i++) {
+                x += unzigzag(readVarInt(in));
+                y += unzigzag(readVarInt(in));
+                z += unzigzag(readVarInt(in));
+                BlockPos min = new BlockPos(x, y, z);
+                boxes.add(new AxisAlignedBB(min, min.add(readVarInt(in), readVarInt(in), readVarInt(in))));
+                if (blockIds != null) blockIds[i] = readVarInt(in);
+            }
+            return new CapsulePreview(boxes, blockIds);
+        }
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Capsule preview varint too big");
+    }
+}
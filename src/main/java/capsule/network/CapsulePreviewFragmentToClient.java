@@ -0,0 +1,143 @@
+package capsule.network;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This Network Message is sent from the server to the client: a part of the encoded content preview of a capsule
+ * (see {@link CapsulePreview}). The client puts the fragments of a same preview back together in order.
+ */
+public class CapsulePreviewFragmentToClient implements IMessage {
+
+    protected static final Logger LOGGER = LogManager.getLogger(CapsulePreviewFragmentToClient.class);
+
+    /** bytes of encoded preview per fragment. */
+    public static final int FRAGMENT_SIZE = 32 * 1024;
+
+    private int protocolVersion = CapsulePreview.PROTOCOL_VERSION;
+    private String structureName = null;
+    /** identifies the preview the fragment is part of, for the structure name. */
+    private int previewId = 0;
+    /** revision of the template the preview was computed from. */
+    private int revision = 0;
+    private int index = 0;
+    private int count = 0;
+    private byte[] data = null;
+    private boolean messageIsValid = false;
+
+    public CapsulePreviewFragmentToClient(String structureName, int previewId, int revision, int index, int count, byte[] data) {
+        this.structureName = structureName;
+        this.previewId = previewId;
+        this.revision = revision;
+        this.index = index;
+        this.count = count;
+        this.data = data;
+        this.messageIsValid = true;
+    }
+
+    // for use by the message handler only.
+    public CapsulePreviewFragmentToClient() {
+        messageIsValid = false;
+    }
+
+    /**
+     * Split the encoded preview in fragments of at most FRAGMENT_SIZE bytes, there is at least one fragment.
+     */
+    public static List<CapsulePreviewFragmentToClient> split(String structureName, int previewId, int revision, byte[] encoded) {
+        int count = Math.max(1, (encoded.length + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE);
+        List<CapsulePreviewFragmentToClient> fragments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] data = Arrays.copyOfRange(encoded, i * FRAGMENT_SIZE, Math.min(encoded.length, (i + 1) * FRAGMENT_SIZE));
+            fragments.add(new CapsulePreviewFragmentToClient(structureName, previewId, revision, i, count, data));
+        }
+        return fragments;
+    }
+
+    /**
+     * Called by the network code once it has received the message bytes over
+     * the network. Used to read the ByteBuf contents into your member variables
+     *
+     * @param buf buffer content to read from
+     */
+    @Override
+    public void fromBytes(ByteBuf buf) {
+        try {
+            this.protocolVersion = ByteBufUtils.readVarInt(buf, 5);
+            if (this.protocolVersion != CapsulePreview.PROTOCOL_VERSION) {
+                LOGGER.warn("Capsule preview received with unknown protocol version " + this.protocolVersion);
+                return;
+            }
+            this.structureName = ByteBufUtils.readUTF8String(buf);
+            this.previewId = buf.readInt();
+            this.revision = buf.readInt();
+            this.index = ByteBufUtils.readVarInt(buf, 5);
+            this.count = ByteBufUtils.readVarInt(buf, 5);
+            this.data = new byte[ByteBufUtils.readVarInt(buf, 5)];
+            buf.readBytes(this.data);
+            messageIsValid = this.index < this.count;
+
+        } catch (IndexOutOfBoundsException ioe) {
+            LOGGER.error("Exception while reading CapsulePreviewFragmentToClient: " + ioe);
+        }
+    }
+
+    /**
+     * Called by the network code. Used to write the contents of your message
+     * member variables into the ByteBuf, ready for transmission over the
+     * network.
+     *
+     * @param buf buffer content to write into
+     */
+    @Override
+    public void toBytes(ByteBuf buf) {
+        if (!messageIsValid) return;
+        ByteBufUtils.writeVarInt(buf, this.protocolVersion, 5);
+        ByteBufUtils.writeUTF8String(buf, this.structureName);
+        buf.writeInt(this.previewId);
+        buf.writeInt(this.revision);
+        ByteBufUtils.writeVarInt(buf, this.index, 5);
+        ByteBufUtils.writeVarInt(buf, this.count, 5);
+        ByteBufUtils.writeVarInt(buf, this.data.length, 5);
+        buf.writeBytes(this.data);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().toString();
+    }
+
+    public boolean isMessageValid() {
+        return messageIsValid;
+    }
+
+    public String getStructureName() {
+        return structureName;
+    }
+
+    public int getPreviewId() {
+        return previewId;
+    }
+
+    public int getRevision() {
+        return revision;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+}
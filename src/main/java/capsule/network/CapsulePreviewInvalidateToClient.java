@@ -0,0 +1,66 @@
+package capsule.network;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraftforge.fml.common.network.ByteBufUtils;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This Network Message is sent from the server to the client when a template changed, so that its preview is asked again.
+ */
+public class CapsulePreviewInvalidateToClient implements IMessage {
+
+    protected static final Logger LOGGER = LogManager.getLogger(CapsulePreviewInvalidateToClient.class);
+
+    private String structureName = null;
+    /** revision of the template after the change. */
+    private int revision = 0;
+    private boolean messageIsValid = false;
+
+    public CapsulePreviewInvalidateToClient(String structureName, int revision) {
+        this.structureName = structureName;
+        this.revision = revision;
+        this.messageIsValid = true;
+    }
+
+    // for use by the message handler only.
+    public CapsulePreviewInvalidateToClient() {
+        messageIsValid = false;
+    }
+
+    @Override
+    public void fromBytes(ByteBuf buf) {
+        try {
+            this.structureName = ByteBufUtils.readUTF8String(buf);
+            this.revision = buf.readInt();
+            messageIsValid = true;
+        } catch (IndexOutOfBoundsException ioe) {
+            LOGGER.error("Exception while reading CapsulePreviewInvalidateToClient: " + ioe);
+        }
+    }
+
+    @Override
+    public void toBytes(ByteBuf buf) {
+        if (!messageIsValid) return;
+        ByteBufUtils.writeUTF8String(buf, this.structureName);
+        buf.writeInt(this.revision);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().toString();
+    }
+
+    public boolean isMessageValid() {
+        return messageIsValid;
+    }
+
+    public String getStructureName() {
+        return structureName;
+    }
+
+    public int getRevision() {
+        return revision;
+    }
+}
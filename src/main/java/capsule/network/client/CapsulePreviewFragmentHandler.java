@@ -0,0 +1,88 @@
+package capsule.network.client;
+
+import capsule.client.CapsulePreviewCache;
+import capsule.network.CapsulePreview;
+import capsule.network.CapsulePreviewFragmentToClient;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+import net.minecraftforge.fml.relauncher.Side;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Puts the preview fragments back together, and decodes the preview once every fragment is received.
+ * A fragment of a newer preview of the same structure discards the fragments received so far.
+ */
+public class CapsulePreviewFragmentHandler implements IMessageHandler<CapsulePreviewFragmentToClient, IMessage> {
+
+    protected static final Logger LOGGER = LogManager.getLogger(CapsulePreviewFragmentHandler.class);
+
+    /** 128MB of encoded preview at most. */
+    private static final int MAX_FRAGMENTS = 4096;
+
+    private static final Map<String, PendingPreview> pendingPreviews = new HashMap<>();
+
+    private static class PendingPreview {
+        private final int previewId;
+        private final byte[][] fragments;
+        private int received = 0;
+
+        private PendingPreview(int previewId, int count) {
+            this.previewId = previewId;
+            this.fragments = new byte[count][];
+        }
+    }
+
+    /**
+     * Called when a message is received of the appropriate type.
+     * CALLED BY THE NETWORK THREAD
+     *
+     * @param message The message
+     */
+    public IMessage onMessage(final CapsulePreviewFragmentToClient message, MessageContext ctx) {
+        if (ctx.side != Side.CLIENT) {
+            LOGGER.error("CapsulePreviewFragmentToClient received on wrong side:" + ctx.side);
+            return null;
+        }
+        if (!message.isMessageValid() || message.getCount() > MAX_FRAGMENTS) {
+            LOGGER.error("CapsulePreviewFragmentToClient was invalid" + message.toString());
+            return null;
+        }
+
+        byte[] encoded;
+        synchronized (pendingPreviews) {
+            PendingPreview pending = pendingPreviews.get(message.getStructureName());
+            if (pending == null || pending.previewId != message.getPreviewId() || pending.fragments.length != message.getCount()) {
+                pending = new PendingPreview(message.getPreviewId(), message.getCount());
+                pendingPreviews.put(message.getStructureName(), pending);
+            }
+            if (pending.fragments[message.getIndex()] == null) {
+                pending.fragments[message.getIndex()] = message.getData();
+                pending.received++;
+            }
+            if (pending.received < pending.fragments.length) {
+                return null;
+            }
+            pendingPreviews.remove(message.getStructureName());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (byte[] fragment : pending.fragments) {
+                bytes.write(fragment, 0, fragment.length);
+            }
+            encoded = bytes.toByteArray();
+        }
+
+        try {
+            CapsulePreviewCache.put(message.getStructureName(), message.getRevision(), CapsulePreview.decode(encoded));
+        } catch (IOException e) {
+            LOGGER.error("Couldn't decode the preview of " + message.getStructureName(), e);
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,38 @@
+package capsule.network.client;
+
+import capsule.client.CapsulePreviewCache;
+import capsule.network.CapsulePreviewInvalidateToClient;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+import net.minecraftforge.fml.relauncher.Side;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Drops the preview of a template that changed, it is asked again when a capsule of that template is in the hotbar.
+ */
+public class CapsulePreviewInvalidateHandler implements IMessageHandler<CapsulePreviewInvalidateToClient, IMessage> {
+
+    protected static final Logger LOGGER = LogManager.getLogger(CapsulePreviewInvalidateHandler.class);
+
+    /**
+     * Called when a message is received of the appropriate type.
+     * CALLED BY THE NETWORK THREAD
+     *
+     * @param message The message
+     */
+    public IMessage onMessage(final CapsulePreviewInvalidateToClient message, MessageContext ctx) {
+        if (ctx.side != Side.CLIENT) {
+            LOGGER.error("CapsulePreviewInvalidateToClient received on wrong side:" + ctx.side);
+            return null;
+        }
+        if (!message.isMessageValid()) {
+            LOGGER.error("CapsulePreviewInvalidateToClient was invalid" + message.toString());
+            return null;
+        }
+
+        CapsulePreviewCache.invalidate(message.getStructureName(), message.getRevision());
+        return null;
+    }
+}
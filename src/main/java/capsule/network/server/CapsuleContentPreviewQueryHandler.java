@@ -1,26 +1,14 @@
 package capsule.network.server;
 
-import capsule.StructureSaver;
-import capsule.helpers.Spacial;
-import capsule.items.CapsuleItem;
-import capsule.network.CapsuleContentPreviewAnswerToClient;
 import capsule.network.CapsuleContentPreviewQueryToServer;
-import capsule.structure.CapsuleTemplate;
-import capsule.structure.CapsuleTemplateManager;
 import net.minecraft.entity.player.EntityPlayerMP;
-import net.minecraft.item.ItemStack;
-import net.minecraft.util.math.AxisAlignedBB;
-import net.minecraft.util.text.TextComponentTranslation;
-import net.minecraft.world.WorldServer;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
 import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
 import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
 import net.minecraftforge.fml.relauncher.Side;
-import org.apache.commons.lang3.tuple.Pair;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.List;
-
 /**
  * The MessageHandlerOnServer is used to process the network message once it has
  * arrived on the Server side. WARNING! In 1.8 the MessageHandler now runs in
@@ -31,7 +19,7 @@ import java.util.List;
  * Date: 15/01/2015
  */
 public class CapsuleContentPreviewQueryHandler
-        implements IMessageHandler<CapsuleContentPreviewQueryToServer, CapsuleContentPreviewAnswerToClient> {
+        implements IMessageHandler<CapsuleContentPreviewQueryToServer, IMessage> {
 
     protected static final Logger LOGGER = LogManager.getLogger(CapsuleContentPreviewQueryHandler.class);
 
@@ -41,8 +29,8 @@ public class CapsuleContentPreviewQueryHandler
      *
      * @param message The message
      */
-    public CapsuleContentPreviewAnswerToClient onMessage(final CapsuleContentPreviewQueryToServer message,
-                                                         MessageContext ctx) {
+    public IMessage onMessage(final CapsuleContentPreviewQueryToServer message,
+                              MessageContext ctx) {
         if (ctx.side != Side.SERVER) {
             LOGGER.error("AskCapsuleContentPreviewMessageToServer received on wrong side:" + ctx.side);
             return null;
@@ -63,25 +51,8 @@ public class CapsuleContentPreviewQueryHandler
             return null;
         }
 
-        // read the content of the template and send it back to the client
-        ItemStack heldItem = sendingPlayer.getHeldItemMainhand();
-        if (!(heldItem.getItem() instanceof CapsuleItem) || CapsuleItem.getStructureName(heldItem) == null) {
-            return null;
-        }
-
-        WorldServer serverworld = sendingPlayer.getServerWorld();
-        Pair<CapsuleTemplateManager, CapsuleTemplate> templatepair = StructureSaver.getTemplate(heldItem, serverworld);
-        CapsuleTemplate template = templatepair.getRight();
-
-        if (template != null) {
-            List<AxisAlignedBB> blockspos = Spacial.mergeVoxels(template.blocks);
-            return new CapsuleContentPreviewAnswerToClient(blockspos, message.getStructureName());
-
-        } else if (heldItem.hasTagCompound()) {
-            //noinspection ConstantConditions
-            String structureName = heldItem.getTagCompound().getString("structureName");
-            sendingPlayer.sendMessage(new TextComponentTranslation("capsule.error.templateNotFound", structureName));
-        }
+        // the template is read on the main server thread, the preview is computed by the preview workers
+        sendingPlayer.getServerWorld().addScheduledTask(() -> CapsulePreviewWorker.request(sendingPlayer, message.getStructureName()));
 
         return null;
 
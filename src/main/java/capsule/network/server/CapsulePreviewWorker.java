@@ -0,0 +1,180 @@
+package capsule.network.server;
+
+import capsule.CommonProxy;
+import capsule.StructureSaver;
+import capsule.items.CapsuleItem;
+import capsule.network.CapsulePreviewFragmentToClient;
+import capsule.network.CapsulePreviewInvalidateToClient;
+import capsule.structure.CapsuleTemplate;
+import capsule.structure.CapsuleTemplateManager;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.entity.player.InventoryPlayer;
+import net.minecraft.item.ItemStack;
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.util.text.TextComponentTranslation;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers the preview queries of the players. Previews are merged and encoded on a bounded pool of worker threads,
+ * and sent back from the server thread once ready.
+ * Players can ask the previews of the capsules in their hotbar. Asking again for a preview not sent yet is coalesced
+ * with the pending request, the request is cancelled when the capsule leaves the hotbar or when its template changes.
+ * All the methods are called from the server thread.
+ *
+ * @author Lythom
+ */
+@Mod.EventBusSubscriber
+public class CapsulePreviewWorker {
+
+    protected static final Logger LOGGER = LogManager.getLogger(CapsulePreviewWorker.class);
+
+    private static final int THREADS = 2;
+    /** previews waiting for a worker, further requests are rejected and answered when asked again. */
+    private static final int MAX_QUEUED = 32;
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(MAX_QUEUED), runnable -> {
+        Thread thread = new Thread(runnable, "Capsule preview worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final List<PendingAnswer> pendingAnswers = new ArrayList<>();
+    /** sequence of the previews sent. */
+    private static int nextPreviewId = 0;
+
+    private static class PendingAnswer {
+        private final EntityPlayerMP player;
+        private final String structureName;
+        private final int revision;
+        private final CompletableFuture<byte[]> preview;
+
+        private PendingAnswer(EntityPlayerMP player, String structureName, int revision, CompletableFuture<byte[]> preview) {
+            this.player = player;
+            this.structureName = structureName;
+            this.revision = revision;
+            this.preview = preview;
+        }
+    }
+
+    /**
+     * Send to the player the preview of a capsule of the hotbar.
+     *
+     * @param structureName structure name the client asked for
+     */
+    public static void request(EntityPlayerMP player, String structureName) {
+        ItemStack capsule = getHotbarCapsule(player, structureName);
+        if (capsule.isEmpty()) {
+            return;
+        }
+        for (PendingAnswer pending : pendingAnswers) {
+            if (pending.player == player && pending.structureName.equals(structureName)) return;
+        }
+
+        Pair<CapsuleTemplateManager, CapsuleTemplate> templatepair = StructureSaver.getTemplate(capsule, player.getServerWorld());
+        CapsuleTemplateManager templateManager = templatepair.getLeft();
+        if (templateManager == null || templatepair.getRight() == null) {
+            if (capsule.hasTagCompound()) {
+                //noinspection ConstantConditions
+                player.sendMessage(new TextComponentTranslation("capsule.error.templateNotFound", capsule.getTagCompound().getString("structureName")));
+            }
+            return;
+        }
+
+        // merged and encoded once per template revision, whatever the number of players holding that capsule
+        ResourceLocation location = new ResourceLocation(structureName);
+        int revision = templateManager.getRevision(location);
+        CompletableFuture<byte[]> preview = templateManager.getEncodedPreview(player.getServerWorld().getMinecraftServer(), location, executor);
+        PendingAnswer answer = new PendingAnswer(player, structureName, revision, preview);
+        if (preview.isDone()) {
+            answer(answer);
+            return;
+        }
+        pendingAnswers.add(answer);
+        preview.whenComplete((result, error) -> player.getServerWorld().addScheduledTask(() -> {
+            if (pendingAnswers.remove(answer)) {
+                answer(answer);
+            }
+        }));
+    }
+
+    private static void answer(PendingAnswer answer) {
+        if (answer.preview.isCancelled() || answer.player.hasDisconnected() || getHotbarCapsule(answer.player, answer.structureName).isEmpty()) return;
+        try {
+            byte[] encoded = answer.preview.join();
+            for (CapsulePreviewFragmentToClient fragment : CapsulePreviewFragmentToClient.split(answer.structureName, nextPreviewId++, answer.revision, encoded)) {
+                CommonProxy.simpleNetworkWrapper.sendTo(fragment, answer.player);
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RejectedExecutionException) {
+                // too many previews queued, the client asks again a bit later
+                LOGGER.debug("Preview of " + answer.structureName + " rejected, the preview workers are busy");
+            } else {
+                LOGGER.error("Couldn't compute the preview of " + answer.structureName, e.getCause());
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Couldn't send the preview of " + answer.structureName, e);
+        }
+    }
+
+    private static ItemStack getHotbarCapsule(EntityPlayerMP player, String structureName) {
+        for (int i = 0; i < InventoryPlayer.getHotbarSize(); i++) {
+            ItemStack stack = player.inventory.getStackInSlot(i);
+            if (stack.getItem() instanceof CapsuleItem && structureName.equals(CapsuleItem.getStructureName(stack))) {
+                return stack;
+            }
+        }
+        return ItemStack.EMPTY;
+    }
+
+    /**
+     * Drop the answer, and the preview computation itself if it was not started and no one else waits for it.
+     */
+    private static void cancel(PendingAnswer pending) {
+        pendingAnswers.remove(pending);
+        for (PendingAnswer other : pendingAnswers) {
+            if (other.preview == pending.preview) return;
+        }
+        pending.preview.cancel(false);
+    }
+
+    /**
+     * The content of a template was written or removed: pending answers are outdated, and the clients drop their preview.
+     */
+    public static void onTemplateChanged(String structureName, int revision) {
+        for (PendingAnswer pending : new ArrayList<>(pendingAnswers)) {
+            if (pending.structureName.equals(structureName)) {
+                cancel(pending);
+            }
+        }
+        CommonProxy.simpleNetworkWrapper.sendToAll(new CapsulePreviewInvalidateToClient(structureName, revision));
+    }
+
+    @SubscribeEvent
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase != TickEvent.Phase.END || pendingAnswers.isEmpty()) return;
+        for (PendingAnswer pending : new ArrayList<>(pendingAnswers)) {
+            if (pending.player.hasDisconnected() || getHotbarCapsule(pending.player, pending.structureName).isEmpty()) {
+                cancel(pending);
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package capsule.structure;
+
+import capsule.Config;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.init.Blocks;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.EnumFacing;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sets blocks for capsule operations. In bulk mode, block states are written in the chunk sections directly and the costly
+ * side effects of World.setBlockState are done once per batch in {@link #flush()} instead of once per block:
+ * height map and sky light are computed again once per modified chunk (the chunk then relights itself over the next ticks),
+ * block light is only checked around light emitting blocks, and neighbors are only notified at the border of the changes.
+ * The world listeners are told about every changed block at the flush, the player chunk map then sends the modified
+ * sections of each chunk in a single packet past its change threshold instead of one update per block.
+ * Otherwise blocks are set with World.setBlockState.
+ *
+ * @author Lythom
+ */
+public class CapsuleBlockWriter {
+
+    public static final String OPERATION_DEPLOY = "deploy";
+    public static final String OPERATION_BLUEPRINT = "blueprint";
+    public static final String OPERATION_UNDEPLOY = "undeploy";
+
+    private final World world;
+    private final boolean bulk;
+
+    /** modified sections bit mask, by chunk */
+    private final Long2IntOpenHashMap modifiedSections = new Long2IntOpenHashMap();
+    private final List<BlockPos> lightChecks = new ArrayList<>();
+    /** blocks changed since the last flush */
+    private final List<Change> changes = new ArrayList<>();
+    private final LongOpenHashSet changedPositions = new LongOpenHashSet();
+
+    private Chunk lastChunk;
+
+    private static class Change {
+        private final BlockPos pos;
+        private final IBlockState oldState;
+        private final IBlockState newState;
+        private final int flags;
+
+        private Change(BlockPos pos, IBlockState oldState, IBlockState newState, int flags) {
+            this.pos = pos;
+            this.oldState = oldState;
+            this.newState = newState;
+            this.flags = flags;
+        }
+    }
+
+    public CapsuleBlockWriter(World world, boolean bulk) {
+        this.world = world;
+        this.bulk = bulk && world instanceof WorldServer;
+    }
+
+    /**
+     * @param operation one of the OPERATION_ constants, bulk mode is used if enabled in config for that operation.
+     */
+    public static CapsuleBlockWriter forOperation(World world, String operation) {
+        return new CapsuleBlockWriter(world, Config.bulkBlockUpdates.contains(operation));
+    }
+
+    public boolean isBulk() {
+        return bulk;
+    }
+
+    /**
+     * Same as World.setBlockState. In bulk mode, the world listeners and neighbors notifications are delayed until the flush.
+     * Neighbors that were changed by this writer as well are not notified.
+     *
+     * @return true if the block was changed
+     */
+    public boolean setBlockState(BlockPos pos, IBlockState state, int flags) {
+        if (!bulk) {
+            return world.setBlockState(pos, state, flags);
+        }
+        if (world.isOutsideBuildHeight(pos)) {
+            return false;
+        }
+
+        Chunk chunk = getChunk(pos);
+        ExtendedBlockStorage[] sections = chunk.getBlockStorageArray();
+        int sectionIndex = pos.getY() >> 4;
+        ExtendedBlockStorage section = sections[sectionIndex];
+        int x = pos.getX() & 15, y = pos.getY() & 15, z = pos.getZ() & 15;
+        IBlockState oldState = section == null ? Blocks.AIR.getDefaultState() : section.get(x, y, z);
+        if (oldState == state || section == null && state.getBlock() == Blocks.AIR) {
+            return false;
+        }
+        if (section == null) {
+            section = new ExtendedBlockStorage(sectionIndex << 4, world.provider.hasSkyLight());
+            sections[sectionIndex] = section;
+        }
+        int oldLight = oldState.getLightValue(world, pos);
+
+        // same side effects as Chunk.setBlockState, without the lighting
+        Block oldBlock = oldState.getBlock();
+        Block block = state.getBlock();
+        section.set(x, y, z, state);
+        if (oldBlock != block) {
+            oldBlock.breakBlock(world, pos, oldState);
+        }
+        TileEntity oldTileEntity = chunk.getTileEntity(pos, Chunk.EnumCreateType.CHECK);
+        if (oldTileEntity != null && oldTileEntity.shouldRefresh(world, pos, oldState, state)) {
+            world.removeTileEntity(pos);
+        }
+        if (section.get(x, y, z).getBlock() != block) {
+            return false;
+        }
+        if (oldBlock != block) {
+            block.onBlockAdded(world, pos, state);
+        }
+        if (block.hasTileEntity(state)) {
+            TileEntity tileentity = chunk.getTileEntity(pos, Chunk.EnumCreateType.CHECK);
+            if (tileentity == null) {
+                tileentity = block.createTileEntity(world, state);
+                world.setTileEntity(pos, tileentity);
+            }
+            if (tileentity != null) {
+                tileentity.updateContainingBlockInfo();
+            }
+        }
+        chunk.markDirty();
+
+        long chunkKey = ChunkPos.asLong(chunk.x, chunk.z);
+        modifiedSections.put(chunkKey, modifiedSections.get(chunkKey) | 1 << sectionIndex);
+        if (oldLight > 0 || state.getLightValue(world, pos) > 0) {
+            lightChecks.add(pos.toImmutable());
+        }
+        changedPositions.add(pos.toLong());
+        changes.add(new Change(pos.toImmutable(), oldState, state, flags));
+        return true;
+    }
+
+    /**
+     * Send the block to the clients again, ie. after its tile entity data changed.
+     */
+    public void markForUpdate(BlockPos pos) {
+        IBlockState state = world.getBlockState(pos);
+        world.notifyBlockUpdate(pos, state, state, 2);
+    }
+
+    /**
+     * Do the delayed updates of the blocks set since the last flush. Does nothing if not in bulk mode.
+     */
+    public void flush() {
+        if (!bulk) return;
+
+        for (Long2IntMap.Entry modified : modifiedSections.long2IntEntrySet()) {
+            Chunk chunk = getChunk(modified.getLongKey());
+            chunk.generateSkylightMap();
+            // the light around the changes is fixed progressively by the chunk itself
+            chunk.resetRelightChecks();
+        }
+        modifiedSections.clear();
+        for (BlockPos pos : lightChecks) {
+            world.checkLight(pos);
+        }
+        lightChecks.clear();
+
+        // same as World.markAndNotifyBlock, neighbors and observers inside the changes are skipped
+        for (Change change : changes) {
+            world.notifyBlockUpdate(change.pos, change.oldState, change.newState, change.flags);
+            if (!hasUnchangedNeighbor(change.pos)) continue;
+            if ((change.flags & 1) != 0) {
+                world.notifyNeighborsRespectDebug(change.pos, change.oldState.getBlock(), true);
+                if (change.newState.hasComparatorInputOverride()) {
+                    world.updateComparatorOutputLevel(change.pos, change.newState.getBlock());
+                }
+            } else if ((change.flags & 16) == 0) {
+                world.updateObservingBlocksAt(change.pos, change.newState.getBlock());
+            }
+        }
+        changes.clear();
+        lastChunk = null;
+    }
+
+    private boolean hasUnchangedNeighbor(BlockPos pos) {
+        for (EnumFacing facing : EnumFacing.VALUES) {
+            if (!changedPositions.contains(pos.offset(facing).toLong())) return true;
+        }
+        return false;
+    }
+
+    private Chunk getChunk(long chunkKey) {
+        return world.getChunkFromChunkCoords((int) chunkKey, (int) (chunkKey >> 32));
+    }
+
+    private Chunk getChunk(BlockPos pos) {
+        if (lastChunk == null || lastChunk.x != pos.getX() >> 4 || lastChunk.z != pos.getZ() >> 4) {
+            lastChunk = world.getChunkFromBlockCoords(pos);
+        }
+        return lastChunk;
+    }
+}
@@ -0,0 +1,159 @@
+package capsule.structure;
+
+import capsule.Config;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockLiquid;
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.gen.structure.template.PlacementSettings;
+import net.minecraft.world.gen.structure.template.Template;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Compares the blocks found in the world with the content of a blueprint, whatever their position.
+ * Each block is reduced to a 64 bits fingerprint of its unlocalized name, its dropped damage value and its identity NBT
+ * (see Config.getBlueprintIdentityNBT), and both sides are compared as counts of fingerprints.
+ * The counts of a blueprint are computed once per template content.
+ * Flowing liquids are ignored on both sides.
+ *
+ * @author Lythom
+ */
+public class CapsuleBlueprintMatcher {
+
+    private static final Map<CapsuleTemplate, BlueprintCounts> blueprintCounts = new WeakHashMap<>();
+
+    private static class BlueprintCounts {
+        private final int revision;
+        private final Object whitelist;
+        private final Long2IntOpenHashMap counts = new Long2IntOpenHashMap();
+        private int total = 0;
+
+        private BlueprintCounts(int revision, Object whitelist) {
+            this.revision = revision;
+            this.whitelist = whitelist;
+        }
+    }
+
+    private final Map<Block, Long> nameHashes = new IdentityHashMap<>();
+    private final Map<Block, List<String>> identityKeys = new IdentityHashMap<>();
+
+    /**
+     * @param worldBlocks blocks found in the world
+     * @return true if the world blocks are the same as the blueprint blocks
+     */
+    public boolean matches(CapsuleTemplate blueprint, List<Template.BlockInfo> worldBlocks) {
+        BlueprintCounts expected = getBlueprintCounts(blueprint);
+        Long2IntOpenHashMap found = new Long2IntOpenHashMap(expected.counts.size());
+        int foundCount = 0;
+        for (Template.BlockInfo b : worldBlocks) {
+            if (isFlowingLiquid(b)) continue;
+            long fingerprint = fingerprint(b);
+            // more blocks of that kind than in the blueprint
+            if (found.addTo(fingerprint, 1) + 1 > expected.counts.get(fingerprint)) return false;
+            foundCount++;
+        }
+        return foundCount == expected.total;
+    }
+
+    /**
+     * List the positions where the world differs from the blueprint as it was deployed.
+     *
+     * @param startPos    lowest corner of the deployed blueprint
+     * @param worldBlocks blocks found in the world, relative to startPos
+     */
+    public List<BlockPos> findMismatches(CapsuleTemplate blueprint, PlacementSettings placement, BlockPos startPos, List<Template.BlockInfo> worldBlocks) {
+        Long2LongOpenHashMap expected = new Long2LongOpenHashMap(blueprint.blocks.size());
+        CapsulePlacementPlan plan = blueprint.getPlacementPlan(placement);
+        BlockPos origin = startPos.add(CapsuleTemplate.recenterRotation((blueprint.getSize().getX() - 1) / 2, placement));
+        BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+        for (int i = 0; i < blueprint.blocks.size(); i++) {
+            Template.BlockInfo b = blueprint.blocks.get(i);
+            if (isFlowingLiquid(b)) continue;
+            expected.put(plan.getPosition(i, origin, pos).toLong(), fingerprint(b));
+        }
+
+        List<BlockPos> mismatches = new ArrayList<>();
+        for (Template.BlockInfo b : worldBlocks) {
+            if (isFlowingLiquid(b)) continue;
+            pos.setPos(startPos.getX() + b.pos.getX(), startPos.getY() + b.pos.getY(), startPos.getZ() + b.pos.getZ());
+            long key = pos.toLong();
+            if (!expected.containsKey(key) || expected.remove(key) != fingerprint(b)) {
+                mismatches.add(pos.toImmutable());
+            }
+        }
+        // blueprint blocks missing in the world
+        for (Long2LongMap.Entry missing : expected.long2LongEntrySet()) {
+            mismatches.add(BlockPos.fromLong(missing.getLongKey()));
+        }
+        return mismatches;
+    }
+
+    private BlueprintCounts getBlueprintCounts(CapsuleTemplate blueprint) {
+        BlueprintCounts cached = blueprintCounts.get(blueprint);
+        if (cached != null && cached.revision == blueprint.getBlocksRevision() && cached.whitelist == Config.blueprintWhitelist) {
+            return cached;
+        }
+        BlueprintCounts counts = new BlueprintCounts(blueprint.getBlocksRevision(), Config.blueprintWhitelist);
+        for (Template.BlockInfo b : blueprint.blocks) {
+            if (isFlowingLiquid(b)) continue;
+            counts.counts.addTo(fingerprint(b), 1);
+            counts.total++;
+        }
+        blueprintCounts.put(blueprint, counts);
+        return counts;
+    }
+
+    /**
+     * Blocks having the same fingerprint are considered the same for blueprints.
+     */
+    public long fingerprint(Template.BlockInfo b) {
+        Block block = b.blockState.getBlock();
+        long h = nameHashes.computeIfAbsent(block, k -> hash(k.getUnlocalizedName()));
+        h = mix(h ^ block.damageDropped(b.blockState) * 0x9E3779B97F4A7C15L);
+        if (b.tileentityData != null) {
+            List<String> keys = identityKeys.computeIfAbsent(block, k -> {
+                List<String> identity = Config.getBlueprintIdentityNBT(k);
+                return identity == null ? Collections.emptyList() : identity;
+            });
+            // combined without order, like the keys of a compound
+            long nbtHash = 0;
+            for (String key : keys) {
+                NBTBase tag = b.tileentityData.getTag(key);
+                if (tag != null) nbtHash += mix(hash(key) ^ tag.hashCode());
+            }
+            h = mix(h ^ nbtHash);
+        }
+        return h;
+    }
+
+    public static boolean isFlowingLiquid(Template.BlockInfo b) {
+        return b.blockState.getBlock() instanceof BlockLiquid && b.blockState.getValue(BlockLiquid.LEVEL) != 0;
+    }
+
+    /**
+     * FNV-1a, stable across runs unlike identity hashes.
+     */
+    private static long hash(@Nullable String s) {
+        long h = 0xcbf29ce484222325L;
+        if (s == null) return h;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * SplitMix64 finalizer.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
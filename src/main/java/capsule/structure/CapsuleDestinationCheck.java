@@ -0,0 +1,463 @@
+package capsule.structure;
+
+import capsule.helpers.BlockSet;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.block.Block;
+import net.minecraft.block.state.BlockStateContainer;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityLivingBase;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.init.Blocks;
+import net.minecraft.item.ItemStack;
+import net.minecraft.network.PacketBuffer;
+import net.minecraft.util.SoundCategory;
+import net.minecraft.util.SoundEvent;
+import net.minecraft.util.math.AxisAlignedBB;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.world.IWorldEventListener;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+import net.minecraft.world.gen.structure.StructureBoundingBox;
+import net.minecraft.world.gen.structure.template.PlacementSettings;
+import net.minecraft.world.gen.structure.template.Template;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks a deploy destination while the capsule is in flight. The blocks of the destination are copied on the server thread
+ * when the capsule is thrown, and compared to the template on a worker thread. The positions changed in the world after the copy
+ * are recorded, so that when the capsule lands only those positions and the entities have to be checked on the server thread.
+ *
+ * @author Lythom
+ */
+@Mod.EventBusSubscriber
+public class CapsuleDestinationCheck {
+
+    protected static final Logger LOGGER = LogManager.getLogger(CapsuleDestinationCheck.class);
+
+    /**
+     * A check not used after that delay is dropped.
+     */
+    private static final long MAX_AGE_MILLIS = 30000;
+    /**
+     * Bigger destinations are checked when the capsule lands, the copy would take too much memory.
+     */
+    private static final int MAX_SNAPSHOT_BLOCKS = 1 << 21;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Capsule destination check");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** checks started and not used yet, only accessed from the server thread */
+    private static final List<CapsuleDestinationCheck> pending = new ArrayList<>();
+
+    private final ItemStack capsule;
+    private final World world;
+    private final BlockPos origin;
+    private final int size;
+    private final CapsuleTemplate content;
+    private final PlacementSettings placement;
+    private final BlockSet overridable;
+    private final StructureBoundingBox region;
+    private final long startedAt = System.currentTimeMillis();
+    private final Future<Result> result;
+    /** positions changed in the world since the copy */
+    private final LongOpenHashSet changedPositions = new LongOpenHashSet();
+
+    private static class Result {
+        private final Long2ObjectOpenHashMap<Template.BlockInfo> blockInfoByPosition;
+        /** positions where the world block prevents the deployment */
+        private final LongOpenHashSet blocked = new LongOpenHashSet();
+        /** positions where the world is not air, and their block */
+        private final Long2ObjectOpenHashMap<Block> occupied = new Long2ObjectOpenHashMap<>();
+
+        private Result(Long2ObjectOpenHashMap<Template.BlockInfo> blockInfoByPosition) {
+            this.blockInfoByPosition = blockInfoByPosition;
+        }
+    }
+
+    private CapsuleDestinationCheck(ItemStack capsule, World world, BlockPos origin, int size, CapsuleTemplate content, PlacementSettings placement,
+                                    BlockSet overridable, SectionsSnapshot snapshot) {
+        this.capsule = capsule;
+        this.world = world;
+        this.origin = origin;
+        this.size = size;
+        this.content = content;
+        this.placement = placement;
+        this.overridable = overridable;
+        this.region = new StructureBoundingBox(origin, origin.add(size - 1, size - 1, size - 1));
+        this.result = executor.submit(() -> compute(snapshot));
+    }
+
+    /**
+     * Start checking the destination of a thrown capsule. Does nothing if the destination is not loaded or too big.
+     *
+     * @param origin lowest corner of the destination
+     */
+    public static void start(ItemStack capsule, World world, BlockPos origin, int size, CapsuleTemplate template, PlacementSettings placement, BlockSet overridable) {
+        dropExpired();
+        pending.removeIf(check -> check.capsule == capsule);
+        if ((long) size * size * size > MAX_SNAPSHOT_BLOCKS || !isRegionLoaded(world, origin, size)) return;
+
+        // the template can be modified or cleared meanwhile, the worker uses copies
+        PlacementSettings placementCopy = new PlacementSettings().setMirror(placement.getMirror()).setRotation(placement.getRotation());
+        pending.add(new CapsuleDestinationCheck(capsule, world, origin, size, template.snapshot(), placementCopy,
+                overridable, new SectionsSnapshot(world, origin, size)));
+    }
+
+    /**
+     * @return the check started for that capsule deployment if it is complete and still matches, null if the destination must be checked from scratch.
+     */
+    @Nullable
+    public static CapsuleDestinationCheck take(ItemStack capsule, World world, BlockPos origin, int size, CapsuleTemplate template, PlacementSettings placement, BlockSet overridable) {
+        dropExpired();
+        for (Iterator<CapsuleDestinationCheck> it = pending.iterator(); it.hasNext(); ) {
+            CapsuleDestinationCheck check = it.next();
+            if (check.capsule != capsule) continue;
+            it.remove();
+            boolean matches = check.world == world && check.origin.equals(origin) && check.size == size
+                    && check.placement.getMirror() == placement.getMirror() && check.placement.getRotation() == placement.getRotation()
+                    && check.overridable == overridable && sameBlocks(check.content.blocks, template.blocks);
+            return matches && check.result.isDone() ? check : null;
+        }
+        return null;
+    }
+
+    /**
+     * Same as StructureSaver.isDestinationValid, using the result computed in background.
+     */
+    public boolean isDestinationValid(Map<BlockPos, Block> outOccupiedPositions, List<String> outEntityBlocking) {
+        if (!isRegionLoaded(world, origin, size)) return false;
+        Result computed;
+        try {
+            computed = result.get();
+        } catch (Exception e) {
+            LOGGER.error("Couldn't check the capsule destination in background", e);
+            return false;
+        }
+        IBlockState air = Blocks.AIR.getDefaultState();
+
+        for (LongIterator it = changedPositions.iterator(); it.hasNext(); ) {
+            long key = it.nextLong();
+            IBlockState worldDestState = world.getBlockState(BlockPos.fromLong(key));
+            Template.BlockInfo srcInfo = computed.blockInfoByPosition.get(key);
+            IBlockState templateBlockState = srcInfo == null ? air : srcInfo.blockState;
+            if (worldDestState != air) {
+                computed.occupied.put(key, worldDestState.getBlock());
+            } else {
+                computed.occupied.remove(key);
+            }
+            if (isBlocking(worldDestState, templateBlockState, overridable)) {
+                computed.blocked.add(key);
+            } else {
+                computed.blocked.remove(key);
+            }
+        }
+        if (!computed.blocked.isEmpty()) return false;
+
+        for (Long2ObjectMap.Entry<List<EntityLivingBase>> entry : entitiesByPosition(world, origin, size).long2ObjectEntrySet()) {
+            Template.BlockInfo srcInfo = computed.blockInfoByPosition.get(entry.getLongKey());
+            if (srcInfo != null && isSolid(srcInfo.blockState, overridable)) {
+                if (outEntityBlocking != null) {
+                    for (Entity entity : entry.getValue()) {
+                        outEntityBlocking.add(entity.getName());
+                    }
+                }
+                return false;
+            }
+        }
+
+        if (outOccupiedPositions != null) {
+            for (Long2ObjectMap.Entry<Block> entry : computed.occupied.long2ObjectEntrySet()) {
+                outOccupiedPositions.put(BlockPos.fromLong(entry.getLongKey()), entry.getValue());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs in the worker thread.
+     */
+    private Result compute(SectionsSnapshot snapshot) {
+        IBlockState air = Blocks.AIR.getDefaultState();
+        Result computed = new Result(blocksByPosition(content, placement, origin, size));
+        BlockPos.MutableBlockPos destPos = new BlockPos.MutableBlockPos();
+        for (int y = 0; y < size; y++) {
+            int worldY = origin.getY() + y;
+            for (int z = 0; z < size; z++) {
+                int worldZ = origin.getZ() + z;
+                for (int x = 0; x < size; x++) {
+                    int worldX = origin.getX() + x;
+                    IBlockState worldDestState = snapshot.get(worldX, worldY, worldZ);
+                    if (worldDestState == air) continue;
+                    long key = destPos.setPos(worldX, worldY, worldZ).toLong();
+                    computed.occupied.put(key, worldDestState.getBlock());
+                    Template.BlockInfo srcInfo = computed.blockInfoByPosition.get(key);
+                    if (isBlocking(worldDestState, srcInfo == null ? air : srcInfo.blockState, overridable)) {
+                        computed.blocked.add(key);
+                    }
+                }
+            }
+        }
+        return computed;
+    }
+
+    /**
+     * Copy of the chunk sections containing a region, taken on the server thread. Each section is copied as it is
+     * sent to the clients: palette and bit-packed block state indices. The states are unpacked in the worker thread.
+     */
+    private static class SectionsSnapshot {
+        private final int minChunkX, minChunkZ, minSection;
+        private final int countX, countZ;
+        /** serialized sections, null for empty sections */
+        private final PacketBuffer[] sections;
+        /** sections unpacked by the worker, same indices as sections */
+        private final IBlockState[][] unpacked;
+
+        private SectionsSnapshot(World world, BlockPos origin, int size) {
+            BlockPos end = origin.add(size - 1, size - 1, size - 1);
+            minChunkX = origin.getX() >> 4;
+            minChunkZ = origin.getZ() >> 4;
+            minSection = origin.getY() >> 4;
+            countX = (end.getX() >> 4) - minChunkX + 1;
+            countZ = (end.getZ() >> 4) - minChunkZ + 1;
+            int countY = (end.getY() >> 4) - minSection + 1;
+            sections = new PacketBuffer[countX * countY * countZ];
+            unpacked = new IBlockState[sections.length][];
+            for (int cz = 0; cz < countZ; cz++) {
+                for (int cx = 0; cx < countX; cx++) {
+                    ExtendedBlockStorage[] storage = world.getChunkFromChunkCoords(minChunkX + cx, minChunkZ + cz).getBlockStorageArray();
+                    for (int cy = 0; cy < countY; cy++) {
+                        ExtendedBlockStorage section = storage[minSection + cy];
+                        if (section == null || section.isEmpty()) continue;
+                        BlockStateContainer data = section.getData();
+                        PacketBuffer buffer = new PacketBuffer(Unpooled.buffer(data.getSerializedSize()));
+                        data.write(buffer);
+                        sections[(cy * countZ + cz) * countX + cx] = buffer;
+                    }
+                }
+            }
+        }
+
+        private IBlockState get(int x, int y, int z) {
+            int index = (((y >> 4) - minSection) * countZ + (z >> 4) - minChunkZ) * countX + (x >> 4) - minChunkX;
+            if (sections[index] == null) return Blocks.AIR.getDefaultState();
+            if (unpacked[index] == null) {
+                unpacked[index] = unpack(sections[index]);
+                sections[index] = null;
+            }
+            return unpacked[index][(y & 15) << 8 | (z & 15) << 4 | (x & 15)];
+        }
+
+        /**
+         * Reads a section written by BlockStateContainer.write.
+         */
+        private static IBlockState[] unpack(PacketBuffer buffer) {
+            int bits = buffer.readUnsignedByte();
+            // the global palette writes no entry: indices are block state ids
+            int[] palette = new int[buffer.readVarInt()];
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] = buffer.readVarInt();
+            }
+            long[] data = new long[buffer.readVarInt()];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = buffer.readLong();
+            }
+
+            IBlockState air = Blocks.AIR.getDefaultState();
+            IBlockState[] states = new IBlockState[4096];
+            long mask = (1L << bits) - 1;
+            for (int i = 0; i < states.length; i++) {
+                int bitIndex = i * bits;
+                int start = bitIndex >> 6;
+                int offset = bitIndex & 63;
+                long value = data[start] >>> offset;
+                if (offset + bits > 64) value |= data[start + 1] << (64 - offset);
+                int id = (int) (value & mask);
+                if (palette.length > 0) id = id < palette.length ? palette[id] : 0;
+                IBlockState state = Block.BLOCK_STATE_IDS.getByValue(id);
+                states[i] = state == null ? air : state;
+            }
+            return states;
+        }
+    }
+
+    /**
+     * @return true if the world block prevents the template block from being deployed over it.
+     */
+    public static boolean isBlocking(IBlockState worldDestState, IBlockState templateBlockState, BlockSet overridableBlocks) {
+        boolean worldDestOccupied = worldDestState != Blocks.AIR.getDefaultState() && !overridableBlocks.contains(worldDestState.getBlock());
+        return worldDestOccupied && !overridableBlocks.contains(templateBlockState.getBlock());
+    }
+
+    /**
+     * @return true if the template block can't be deployed where an entity stands.
+     */
+    public static boolean isSolid(IBlockState templateBlockState, BlockSet overridableBlocks) {
+        return templateBlockState != Blocks.AIR.getDefaultState() && !overridableBlocks.contains(templateBlockState.getBlock());
+    }
+
+    /**
+     * @return template blocks by the world position they are deployed at.
+     */
+    public static Long2ObjectOpenHashMap<Template.BlockInfo> blocksByPosition(CapsuleTemplate template, PlacementSettings placement, BlockPos origin, int size) {
+        Long2ObjectOpenHashMap<Template.BlockInfo> blockInfoByPosition = new Long2ObjectOpenHashMap<>(template.blocks.size());
+        CapsulePlacementPlan plan = template.getPlacementPlan(placement);
+        BlockPos recentered = origin.add(CapsuleTemplate.recenterRotation((size - 1) / 2, placement));
+        BlockPos.MutableBlockPos blockpos = new BlockPos.MutableBlockPos();
+        for (int i = 0; i < template.blocks.size(); i++) {
+            blockInfoByPosition.put(plan.getPosition(i, recentered, blockpos).toLong(), template.blocks.get(i));
+        }
+        return blockInfoByPosition;
+    }
+
+    /**
+     * A single query for the whole region, then non player living entities are sorted by the block positions they intersect.
+     */
+    public static Long2ObjectOpenHashMap<List<EntityLivingBase>> entitiesByPosition(World world, BlockPos origin, int size) {
+        int maxX = origin.getX() + size - 1;
+        int maxY = origin.getY() + size - 1;
+        int maxZ = origin.getZ() + size - 1;
+        List<EntityLivingBase> regionEntities = world.getEntitiesWithinAABB(
+                EntityLivingBase.class,
+                new AxisAlignedBB(origin.getX(), origin.getY(), origin.getZ(), maxX + 1, maxY + 1, maxZ + 1),
+                entity -> !(entity instanceof EntityPlayer)
+        );
+        Long2ObjectOpenHashMap<List<EntityLivingBase>> entitiesByPosition = new Long2ObjectOpenHashMap<>();
+        BlockPos.MutableBlockPos destPos = new BlockPos.MutableBlockPos();
+        for (EntityLivingBase entity : regionEntities) {
+            AxisAlignedBB bb = entity.getEntityBoundingBox();
+            for (int x = Math.max(origin.getX(), MathHelper.floor(bb.minX)); x <= Math.min(maxX, MathHelper.ceil(bb.maxX) - 1); x++) {
+                for (int y = Math.max(origin.getY(), MathHelper.floor(bb.minY)); y <= Math.min(maxY, MathHelper.ceil(bb.maxY) - 1); y++) {
+                    for (int z = Math.max(origin.getZ(), MathHelper.floor(bb.minZ)); z <= Math.min(maxZ, MathHelper.ceil(bb.maxZ) - 1); z++) {
+                        entitiesByPosition.computeIfAbsent(destPos.setPos(x, y, z).toLong(), k -> new ArrayList<>()).add(entity);
+                    }
+                }
+            }
+        }
+        return entitiesByPosition;
+    }
+
+    /**
+     * @return true if the region is within the world height and all its chunks are loaded.
+     */
+    public static boolean isRegionLoaded(World world, BlockPos origin, int size) {
+        int maxY = origin.getY() + size - 1;
+        if (origin.getY() < 0 || maxY >= world.getHeight()) return false;
+        for (int chunkX = origin.getX() >> 4; chunkX <= (origin.getX() + size - 1) >> 4; chunkX++) {
+            for (int chunkZ = origin.getZ() >> 4; chunkZ <= (origin.getZ() + size - 1) >> 4; chunkZ++) {
+                if (!world.isBlockLoaded(new BlockPos(chunkX << 4, origin.getY(), chunkZ << 4))) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record a block change for the checks whose destination contains that position.
+     */
+    public static void onBlockChanged(World world, BlockPos pos) {
+        if (pending.isEmpty()) return;
+        for (CapsuleDestinationCheck check : pending) {
+            if (check.world == world && check.region.isVecInside(pos)) {
+                check.changedPositions.add(pos.toLong());
+            }
+        }
+    }
+
+    private static boolean sameBlocks(List<Template.BlockInfo> a, List<Template.BlockInfo> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i)) return false;
+        }
+        return true;
+    }
+
+    private static void dropExpired() {
+        if (pending.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        pending.removeIf(check -> now - check.startedAt > MAX_AGE_MILLIS);
+    }
+
+    @SubscribeEvent
+    public static void onWorldLoad(WorldEvent.Load event) {
+        if (!event.getWorld().isRemote) {
+            event.getWorld().addEventListener(new BlockChangeListener());
+        }
+    }
+
+    @SubscribeEvent
+    public static void onWorldUnload(WorldEvent.Unload event) {
+        pending.removeIf(check -> check.world == event.getWorld());
+    }
+
+    /**
+     * World listener only interested in block changes.
+     */
+    private static class BlockChangeListener implements IWorldEventListener {
+        @Override
+        public void notifyBlockUpdate(World worldIn, BlockPos pos, IBlockState oldState, IBlockState newState, int flags) {
+            if (oldState != newState) onBlockChanged(worldIn, pos);
+        }
+
+        @Override
+        public void notifyLightSet(BlockPos pos) {
+        }
+
+        @Override
+        public void markBlockRangeForRenderUpdate(int x1, int y1, int z1, int x2, int y2, int z2) {
+        }
+
+        @Override
+        public void playSoundToAllNearExcept(@Nullable EntityPlayer player, SoundEvent soundIn, SoundCategory category, double x, double y, double z, float volume, float pitch) {
+        }
+
+        @Override
+        public void playRecord(SoundEvent soundIn, BlockPos pos) {
+        }
+
+        @Override
+        public void spawnParticle(int particleID, boolean ignoreRange, double xCoord, double yCoord, double zCoord, double xSpeed, double ySpeed, double zSpeed, int... parameters) {
+        }
+
+        @Override
+        public void spawnParticle(int id, boolean ignoreRange, boolean minimiseParticleLevel, double x, double y, double z, double xSpeed, double ySpeed, double zSpeed, int... parameters) {
+        }
+
+        @Override
+        public void onEntityAdded(Entity entityIn) {
+        }
+
+        @Override
+        public void onEntityRemoved(Entity entityIn) {
+        }
+
+        @Override
+        public void broadcastSound(int soundID, BlockPos pos, int data) {
+        }
+
+        @Override
+        public void playEvent(EntityPlayer player, int type, BlockPos blockPosIn, int data) {
+        }
+
+        @Override
+        public void sendBlockBreakProgress(int breakerId, BlockPos pos, int progress) {
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package capsule.structure;
+
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.util.Mirror;
+import net.minecraft.util.Rotation;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.gen.structure.template.PlacementSettings;
+import net.minecraft.world.gen.structure.template.Template;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Template blocks transformed by a mirror and a rotation: positions are transformed once and packed in an array,
+ * and each distinct block state of the template is mirrored and rotated once.
+ * Plans are cached by the template, see {@link CapsuleTemplate#getPlacementPlan(PlacementSettings)}.
+ *
+ * @author Lythom
+ */
+public class CapsulePlacementPlan {
+
+    private final Mirror mirror;
+    private final Rotation rotation;
+    /** transformed relative positions, x, y and z of each block */
+    private final int[] offsets;
+    private final IBlockState[] states;
+
+    CapsulePlacementPlan(List<Template.BlockInfo> blocks, Mirror mirror, Rotation rotation) {
+        this.mirror = mirror;
+        this.rotation = rotation;
+        this.offsets = new int[blocks.size() * 3];
+        this.states = new IBlockState[blocks.size()];
+        Map<IBlockState, IBlockState> palette = new IdentityHashMap<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            Template.BlockInfo blockInfo = blocks.get(i);
+            BlockPos transformed = CapsuleTemplate.transformedBlockPos(blockInfo.pos, mirror, rotation);
+            this.offsets[i * 3] = transformed.getX();
+            this.offsets[i * 3 + 1] = transformed.getY();
+            this.offsets[i * 3 + 2] = transformed.getZ();
+            this.states[i] = palette.computeIfAbsent(blockInfo.blockState, state -> state.withMirror(mirror).withRotation(rotation));
+        }
+    }
+
+    public Mirror getMirror() {
+        return mirror;
+    }
+
+    public Rotation getRotation() {
+        return rotation;
+    }
+
+    public int size() {
+        return states.length;
+    }
+
+    /**
+     * @param origin deploy position, including the rotation recenter offset
+     * @return world position of the template block at that index
+     */
+    public BlockPos getPosition(int index, BlockPos origin) {
+        return new BlockPos(origin.getX() + offsets[index * 3], origin.getY() + offsets[index * 3 + 1], origin.getZ() + offsets[index * 3 + 2]);
+    }
+
+    /**
+     * Same as {@link #getPosition(int, BlockPos)} without allocation.
+     */
+    public BlockPos.MutableBlockPos getPosition(int index, BlockPos origin, BlockPos.MutableBlockPos out) {
+        return out.setPos(origin.getX() + offsets[index * 3], origin.getY() + offsets[index * 3 + 1], origin.getZ() + offsets[index * 3 + 2]);
+    }
+
+    /**
+     * @return the template block state at that index, mirrored then rotated.
+     */
+    public IBlockState getState(int index) {
+        return states[index];
+    }
+}
@@ -0,0 +1,186 @@
+package capsule.structure;
+
+import capsule.Config;
+import net.minecraft.item.ItemStack;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.MinecraftException;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.gen.structure.StructureBoundingBox;
+import net.minecraftforge.event.entity.player.EntityItemPickupEvent;
+import net.minecraftforge.event.world.BlockEvent;
+import net.minecraftforge.event.world.ExplosionEvent;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs capsule world operations over several ticks, within a time budget per tick (see Config.tickBudgetMillis).
+ * While a task runs, its region is locked: players cannot break or place blocks in it and explosions don't affect it,
+ * and the capsule item involved cannot be picked up.
+ *
+ * @author Lythom
+ */
+@Mod.EventBusSubscriber
+public class CapsuleTaskScheduler {
+
+    protected static final Logger LOGGER = LogManager.getLogger(CapsuleTaskScheduler.class);
+
+    public interface Task {
+        World getWorld();
+
+        /**
+         * @return region locked while the task runs
+         */
+        StructureBoundingBox getRegion();
+
+        /**
+         * @return capsule that cannot be picked up while the task runs
+         */
+        @Nullable
+        ItemStack getCapsule();
+
+        /**
+         * Do some work within the budget.
+         *
+         * @return true when the task is complete
+         */
+        boolean run(long budgetNanos);
+
+        /**
+         * The task threw an exception, its changes should be reverted.
+         */
+        void onFailure(Exception e);
+    }
+
+    private static final List<Task> tasks = new ArrayList<>();
+
+    public static void schedule(Task task) {
+        tasks.add(task);
+    }
+
+    public static int getRunningCount() {
+        return tasks.size();
+    }
+
+    public static boolean isLocked(World world, BlockPos pos) {
+        for (Task task : tasks) {
+            if (task.getWorld() == world && task.getRegion().isVecInside(pos)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a running task region intersects the given region.
+     */
+    public static boolean isLocked(World world, StructureBoundingBox region) {
+        for (Task task : tasks) {
+            if (task.getWorld() == world && task.getRegion().intersectsWith(region)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a running task works with that capsule.
+     */
+    public static boolean isBusy(ItemStack capsule) {
+        for (Task task : tasks) {
+            if (task.getCapsule() == capsule) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Run all the tasks to their end, ie. when the server stops.
+     */
+    public static void completeAll() {
+        for (Task task : new ArrayList<>(tasks)) {
+            runTask(task, Long.MAX_VALUE);
+        }
+    }
+
+    private static void runTask(Task task, long budgetNanos) {
+        boolean done;
+        try {
+            done = task.run(budgetNanos);
+        } catch (Exception e) {
+            LOGGER.error("Capsule operation failed", e);
+            tasks.remove(task);
+            task.onFailure(e);
+            return;
+        }
+        if (done) tasks.remove(task);
+    }
+
+    @SubscribeEvent
+    public static void onWorldTick(TickEvent.WorldTickEvent event) {
+        if (event.phase != TickEvent.Phase.END || event.world.isRemote || tasks.isEmpty()) return;
+        List<Task> worldTasks = new ArrayList<>();
+        for (Task task : tasks) {
+            if (task.getWorld() == event.world) worldTasks.add(task);
+        }
+        if (worldTasks.isEmpty()) return;
+        long budgetNanos = Config.tickBudgetMillis * 1000000L / worldTasks.size();
+        for (Task task : worldTasks) {
+            runTask(task, budgetNanos);
+        }
+    }
+
+    /**
+     * A dimension unloads, ie. its last player went through a portal: its tasks can't wait for the next ticks.
+     * They are run to their end and the chunks they changed saved again, the world chunks were saved before this event.
+     */
+    @SubscribeEvent
+    public static void onWorldUnload(WorldEvent.Unload event) {
+        if (event.getWorld().isRemote || tasks.isEmpty()) return;
+        boolean ran = false;
+        for (Task task : new ArrayList<>(tasks)) {
+            if (task.getWorld() == event.getWorld()) {
+                runTask(task, Long.MAX_VALUE);
+                ran = true;
+            }
+        }
+        if (ran && event.getWorld() instanceof WorldServer) {
+            try {
+                ((WorldServer) event.getWorld()).saveAllChunks(true, null);
+            } catch (MinecraftException e) {
+                LOGGER.error("Couldn't save the chunks changed by capsule operations of an unloading world", e);
+            }
+        }
+    }
+
+    @SubscribeEvent
+    public static void onBlockBreak(BlockEvent.BreakEvent event) {
+        if (!tasks.isEmpty() && isLocked(event.getWorld(), event.getPos())) {
+            event.setCanceled(true);
+        }
+    }
+
+    @SubscribeEvent
+    public static void onBlockPlace(BlockEvent.PlaceEvent event) {
+        if (!tasks.isEmpty() && isLocked(event.getWorld(), event.getPos())) {
+            event.setCanceled(true);
+        }
+    }
+
+    @SubscribeEvent
+    public static void onExplosion(ExplosionEvent.Detonate event) {
+        if (!tasks.isEmpty()) {
+            event.getAffectedBlocks().removeIf(pos -> isLocked(event.getWorld(), pos));
+        }
+    }
+
+    @SubscribeEvent
+    public static void onItemPickup(EntityItemPickupEvent event) {
+        if (!tasks.isEmpty() && isBusy(event.getItem().getItem())) {
+            event.setCanceled(true);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package capsule.structure;
 
 import capsule.Config;
+import capsule.helpers.BlockSet;
 import com.google.common.collect.Lists;
 import net.minecraft.block.Block;
 import net.minecraft.block.material.Material;
@@ -12,9 +13,7 @@ import net.minecraft.entity.item.EntityArmorStand;
 import net.minecraft.entity.item.EntityItem;
 import net.minecraft.entity.item.EntityPainting;
 import net.minecraft.init.Blocks;
-import net.minecraft.inventory.IInventory;
 import net.minecraft.nbt.*;
-import net.minecraft.tileentity.TileEntity;
 import net.minecraft.util.Mirror;
 import net.minecraft.util.ObjectIntIdentityMap;
 import net.minecraft.util.ResourceLocation;
@@ -45,9 +44,11 @@ import java.util.*;
 public class CapsuleTemplate {
     protected static final Logger LOGGER = LogManager.getLogger(CapsuleTemplate.class);
 
-    public final List<Template.BlockInfo> blocks = Lists.<Template.BlockInfo>newArrayList();
+    public final List<Template.BlockInfo> blocks = new BlockList();
     public final List<Template.EntityInfo> entities = Lists.<Template.EntityInfo>newArrayList();
     public Map<BlockPos, Block> occupiedPositions = null;
+    /** the template file was read with occupied positions inside, as they used to be saved before having their own file */
+    boolean occupiedPositionsInFile = false;
 
     /**
      * size of the structure
@@ -58,6 +59,12 @@ public class CapsuleTemplate {
      */
     public String author = "?";
 
+    /**
+     * CAPSULE placement plans by mirror and rotation, valid while the blocks revision is placementPlansRevision
+     */
+    private CapsulePlacementPlan[] placementPlans = new CapsulePlacementPlan[Mirror.values().length * Rotation.values().length];
+    private int placementPlansRevision = -1;
+
     public BlockPos getSize() {
         return this.size;
     }
@@ -70,6 +77,31 @@ public class CapsuleTemplate {
         return this.author;
     }
 
+    /**
+     * @return a number that changes each time the blocks list is modified.
+     */
+    public int getBlocksRevision() {
+        return ((BlockList) this.blocks).getRevision();
+    }
+
+    /**
+     * @return the template blocks transformed by the placement mirror and rotation. The plan is cached until the blocks change.
+     */
+    public CapsulePlacementPlan getPlacementPlan(PlacementSettings placement) {
+        int revision = getBlocksRevision();
+        if (revision != this.placementPlansRevision) {
+            Arrays.fill(this.placementPlans, null);
+            this.placementPlansRevision = revision;
+        }
+        int key = placement.getMirror().ordinal() * Rotation.values().length + placement.getRotation().ordinal();
+        CapsulePlacementPlan plan = this.placementPlans[key];
+        if (plan == null) {
+            plan = new CapsulePlacementPlan(this.blocks, placement.getMirror(), placement.getRotation());
+            this.placementPlans[key] = plan;
+        }
+        return plan;
+    }
+
     public static BlockPos transformedBlockPos(PlacementSettings placementIn, BlockPos pos) {
         return transformedBlockPos(pos, placementIn.getMirror(), placementIn.getRotation());
     }
@@ -81,13 +113,14 @@ public class CapsuleTemplate {
         );
     }
 
-    private void addEntitiesToWorld(World worldIn, BlockPos pos, Mirror mirrorIn, Rotation rotationIn, @Nullable StructureBoundingBox aabb, List<Entity> spawnedEntities) {
+    void addEntitiesToWorld(World worldIn, BlockPos pos, Mirror mirrorIn, Rotation rotationIn, @Nullable StructureBoundingBox aabb, List<Entity> spawnedEntities) {
+        BlockPos recenterOffset = recenterRotation((size.getX() - 1) / 2, mirrorIn, rotationIn);
         for (Template.EntityInfo template$entityinfo : this.entities) {
-            BlockPos recenterOffset = recenterRotation((size.getX() - 1) / 2, mirrorIn, rotationIn);
             BlockPos blockpos = transformedBlockPos(template$entityinfo.blockPos, mirrorIn, rotationIn).add(pos).add(recenterOffset);
 
             if (aabb == null || aabb.isVecInside(blockpos)) {
-                NBTTagCompound nbttagcompound = template$entityinfo.entityData;
+                // CAPSULE work on a copy: the template data can be in use by the template writer
+                NBTTagCompound nbttagcompound = template$entityinfo.entityData.copy();
                 Vec3d vec3d = transformedVec3d(template$entityinfo.pos, mirrorIn, rotationIn);
                 Vec3d vec3d1 = vec3d
                         .addVector((double) pos.getX(), (double) pos.getY(), (double) pos.getZ())
@@ -117,7 +150,7 @@ public class CapsuleTemplate {
         }
     }
 
-    private static BlockPos transformedBlockPos(BlockPos pos, Mirror mirrorIn, Rotation rotationIn) {
+    static BlockPos transformedBlockPos(BlockPos pos, Mirror mirrorIn, Rotation rotationIn) {
         int i = pos.getX();
         int j = pos.getY();
         int k = pos.getZ();
@@ -191,19 +224,7 @@ public class CapsuleTemplate {
             nbttaglist.appendTag(nbttagcompound);
         }
 
-        NBTTagList nbttaglist1 = new NBTTagList();
-
-        for (Template.EntityInfo template$entityinfo : this.entities) {
-            NBTTagCompound nbttagcompound1 = new NBTTagCompound();
-            nbttagcompound1.setTag("pos", this.writeDoubles(template$entityinfo.pos.x, template$entityinfo.pos.y, template$entityinfo.pos.z));
-            nbttagcompound1.setTag("blockPos", this.writeInts(template$entityinfo.blockPos.getX(), template$entityinfo.blockPos.getY(), template$entityinfo.blockPos.getZ()));
-
-            if (template$entityinfo.entityData != null) {
-                nbttagcompound1.setTag("nbt", template$entityinfo.entityData);
-            }
-
-            nbttaglist1.appendTag(nbttagcompound1);
-        }
+        NBTTagList nbttaglist1 = this.writeEntities();
 
         NBTTagList nbttaglist2 = new NBTTagList();
 
@@ -220,15 +241,8 @@ public class CapsuleTemplate {
         nbt.setInteger("DataVersion", 1343);
 
         // CAPSULE save already occupied positions when deployed
-        NBTTagList occupiedSpawnPositionstaglist = new NBTTagList();
         if (this.occupiedPositions != null) {
-            for (Map.Entry<BlockPos, Block> entry : occupiedPositions.entrySet()) {
-                NBTTagCompound nbtEntry = new NBTTagCompound();
-                nbtEntry.setLong("pos", entry.getKey().toLong());
-                nbtEntry.setInteger("blockId", Block.getIdFromBlock(entry.getValue()));
-                occupiedSpawnPositionstaglist.appendTag(nbtEntry);
-            }
-            nbt.setTag("capsule_occupiedSources", occupiedSpawnPositionstaglist);
+            nbt.setTag("capsule_occupiedSources", this.writeOccupiedPositions());
         }
         return nbt;
     }
@@ -266,7 +280,35 @@ public class CapsuleTemplate {
             }
         }
 
-        NBTTagList nbttaglist4 = compound.getTagList("entities", 10);
+        this.readEntities(compound.getTagList("entities", 10));
+
+        // CAPSULE read already occupied positions when deployed
+        if (compound.hasKey("capsule_occupiedSources")) {
+            this.readOccupiedPositions(compound.getTagList("capsule_occupiedSources", 10));
+            this.occupiedPositionsInFile = true;
+        }
+    }
+
+    NBTTagList writeEntities() {
+        NBTTagList nbttaglist1 = new NBTTagList();
+
+        for (Template.EntityInfo template$entityinfo : this.entities) {
+            NBTTagCompound nbttagcompound1 = new NBTTagCompound();
+            nbttagcompound1.setTag("pos", this.writeDoubles(template$entityinfo.pos.x, template$entityinfo.pos.y, template$entityinfo.pos.z));
+            nbttagcompound1.setTag("blockPos", this.writeInts(template$entityinfo.blockPos.getX(), template$entityinfo.blockPos.getY(), template$entityinfo.blockPos.getZ()));
+
+            if (template$entityinfo.entityData != null) {
+                nbttagcompound1.setTag("nbt", template$entityinfo.entityData);
+            }
+
+            nbttaglist1.appendTag(nbttagcompound1);
+        }
+
+        return nbttaglist1;
+    }
+
+    void readEntities(NBTTagList nbttaglist4) {
+        this.entities.clear();
 
         for (int k = 0; k < nbttaglist4.tagCount(); ++k) {
             NBTTagCompound nbttagcompound3 = nbttaglist4.getCompoundTagAt(k);
@@ -280,17 +322,26 @@ public class CapsuleTemplate {
                 this.entities.add(new Template.EntityInfo(vec3d, blockpos1, nbttagcompound2));
             }
         }
+    }
 
-        // CAPSULE read already occupied positions when deployed
-        if (compound.hasKey("capsule_occupiedSources")) {
-            Map<BlockPos, Block> occupiedSources = new HashMap<>();
-            NBTTagList list = compound.getTagList("capsule_occupiedSources", 10);
-            for (int i = 0; i < list.tagCount(); i++) {
-                NBTTagCompound entry = list.getCompoundTagAt(i);
-                occupiedSources.put(BlockPos.fromLong(entry.getLong("pos")), Block.getBlockById(entry.getInteger("blockId")));
-            }
-            this.occupiedPositions = occupiedSources;
+    NBTTagList writeOccupiedPositions() {
+        NBTTagList occupiedSpawnPositionstaglist = new NBTTagList();
+        for (Map.Entry<BlockPos, Block> entry : occupiedPositions.entrySet()) {
+            NBTTagCompound nbtEntry = new NBTTagCompound();
+            nbtEntry.setLong("pos", entry.getKey().toLong());
+            nbtEntry.setInteger("blockId", Block.getIdFromBlock(entry.getValue()));
+            occupiedSpawnPositionstaglist.appendTag(nbtEntry);
+        }
+        return occupiedSpawnPositionstaglist;
+    }
+
+    void readOccupiedPositions(NBTTagList list) {
+        Map<BlockPos, Block> occupiedSources = new HashMap<>();
+        for (int i = 0; i < list.tagCount(); i++) {
+            NBTTagCompound entry = list.getCompoundTagAt(i);
+            occupiedSources.put(BlockPos.fromLong(entry.getLong("pos")), Block.getBlockById(entry.getInteger("blockId")));
         }
+        this.occupiedPositions = occupiedSources;
     }
 
     private NBTTagList writeInts(int... values) {
@@ -359,56 +410,45 @@ public class CapsuleTemplate {
         this.occupiedPositions = occupiedPositions;
     }
 
+    /**
+     * Shallow copy of the template content, not affected by later changes of this template lists.
+     */
+    public CapsuleTemplate snapshot() {
+        CapsuleTemplate copy = new CapsuleTemplate();
+        copy.blocks.addAll(this.blocks);
+        copy.entities.addAll(this.entities);
+        copy.occupiedPositions = this.occupiedPositions == null ? null : new HashMap<>(this.occupiedPositions);
+        copy.size = this.size;
+        copy.author = this.author;
+        if (this.placementPlansRevision == ((BlockList) this.blocks).getRevision()) {
+            // same blocks, the plans are still valid
+            copy.placementPlans = this.placementPlans.clone();
+            copy.placementPlansRevision = ((BlockList) copy.blocks).getRevision();
+        }
+        return copy;
+    }
+
     /**
      * takes blocks from the world and puts the data them into this template
      */
     public List<BlockPos> snapshotBlocksFromWorld(World worldIn, BlockPos startPos, BlockPos endPos,
-                                                  Map<BlockPos, Block> occupiedPositionsToIgnore, List<Block> excluded, List<Entity> outCapturedEntities) {
+                                                  Map<BlockPos, Block> occupiedPositionsToIgnore, BlockSet excluded, List<Entity> outCapturedEntities) {
 
         List<BlockPos> transferedBlocks = new ArrayList<>();
 
         if (endPos.getX() >= 1 && endPos.getY() >= 1 && endPos.getZ() >= 1) {
             BlockPos blockpos = startPos.add(endPos).add(-1, -1, -1);
-            List<Template.BlockInfo> list = Lists.newArrayList();
-            List<Template.BlockInfo> list1 = Lists.newArrayList();
-            List<Template.BlockInfo> list2 = Lists.newArrayList();
             BlockPos blockpos1 = new BlockPos(Math.min(startPos.getX(), blockpos.getX()), Math.min(startPos.getY(), blockpos.getY()),
                     Math.min(startPos.getZ(), blockpos.getZ()));
             BlockPos blockpos2 = new BlockPos(Math.max(startPos.getX(), blockpos.getX()), Math.max(startPos.getY(), blockpos.getY()),
                     Math.max(startPos.getZ(), blockpos.getZ()));
             this.size = endPos;
 
-            for (BlockPos.MutableBlockPos blockpos$mutableblockpos : BlockPos.getAllInBoxMutable(blockpos1, blockpos2)) {
-                BlockPos blockpos3 = blockpos$mutableblockpos.subtract(blockpos1);
-                IBlockState iblockstate = worldIn.getBlockState(blockpos$mutableblockpos);
-                Block iblock = iblockstate.getBlock();
-
-                if (!excluded.contains(iblock) // excluded blocks are not captured at all
-                        && (occupiedPositionsToIgnore == null // exclude sourceBlock that were already presents. Capture only if it was changed.
-                        || !(occupiedPositionsToIgnore.keySet().contains(blockpos$mutableblockpos)
-                        && occupiedPositionsToIgnore.get(blockpos$mutableblockpos).equals(iblock)))) {
-                    TileEntity tileentity = worldIn.getTileEntity(blockpos$mutableblockpos);
-
-                    if (tileentity != null) {
-                        NBTTagCompound nbttagcompound = tileentity.writeToNBT(new NBTTagCompound());
-                        nbttagcompound.removeTag("x");
-                        nbttagcompound.removeTag("y");
-                        nbttagcompound.removeTag("z");
-                        list1.add(new Template.BlockInfo(blockpos3, iblockstate, nbttagcompound));
-                    } else if (!iblockstate.isFullBlock() && !iblockstate.isFullCube()) {
-                        list2.add(new Template.BlockInfo(blockpos3, iblockstate, null));
-                    } else {
-                        list.add(new Template.BlockInfo(blockpos3, iblockstate, null));
-                    }
-                    // save a copy
-                    transferedBlocks.add(new BlockPos(blockpos$mutableblockpos.getX(), blockpos$mutableblockpos.getY(), blockpos$mutableblockpos.getZ()));
-                }
-            }
-
-            blocks.clear();
-            blocks.addAll(list);
-            blocks.addAll(list1);
-            blocks.addAll(list2);
+            // CAPSULE read chunk sections directly rather than the world position by position
+            CapsuleTemplateCapture capture = new CapsuleTemplateCapture(worldIn, blockpos1, blockpos2, occupiedPositionsToIgnore, excluded);
+            capture.captureAll();
+            capture.applyTo(this);
+            transferedBlocks.addAll(capture.getCapturedPositions());
 
             List<Entity> capturedEntities = this.snapshotNonLivingEntitiesFromWorld(worldIn, blockpos1, blockpos2.add(1, 1, 1));
             if (outCapturedEntities != null && capturedEntities != null) {
@@ -455,83 +495,13 @@ public class CapsuleTemplate {
     /**
      * Tweaked version of "addBlocksToWorld" for capsule
      */
-    public void spawnBlocksAndEntities(World worldIn, BlockPos pos, PlacementSettings placementIn, Map<BlockPos, Block> occupiedPositions, List<Block> overridableBlocks, List<BlockPos> outSpawnedBlocks, List<Entity> outSpawnedEntities) {
-        ITemplateProcessor templateProcessor = new BlockRotationProcessor(pos, placementIn);
-
-        if (size == null) return;
-
-        StructureBoundingBox structureboundingbox = placementIn.getBoundingBox();
-        if (!this.blocks.isEmpty() && this.size.getX() >= 1 && this.size.getY() >= 1 && this.size.getZ() >= 1) {
-            Block block = placementIn.getReplacedBlock();
-
-            for (Template.BlockInfo template$blockinfo : this.blocks) {
-                BlockPos blockpos = transformedBlockPos(placementIn, template$blockinfo.pos).add(pos).add(recenterRotation((size.getX() - 1) / 2, placementIn));
-                Template.BlockInfo template$blockinfo1 = templateProcessor.processBlock(worldIn, blockpos, template$blockinfo);
-
-                if (template$blockinfo1 != null) {
-                    Block block1 = template$blockinfo1.blockState.getBlock();
-
-                    if ((block == null || block != block1)
-                            && (!placementIn.getIgnoreStructureBlock() || block1 != Blocks.STRUCTURE_BLOCK)
-                            && (structureboundingbox == null || structureboundingbox.isVecInside(blockpos))
-                            // CAPSULE add a condition to prevent replacement of existing content by the capsule content if the world content is not overridable
-                            && (!occupiedPositions.containsKey(blockpos) || overridableBlocks.contains(occupiedPositions.get(blockpos)))
-                    ) {
-                        // CAPSULE capsule addition to allow a rollback in case of error while deploying
-                        if (outSpawnedBlocks != null) outSpawnedBlocks.add(blockpos);
-
-                        IBlockState iblockstate = template$blockinfo1.blockState.withMirror(placementIn.getMirror());
-                        IBlockState iblockstate1 = iblockstate.withRotation(placementIn.getRotation());
-
-                        if (template$blockinfo1.tileentityData != null) {
-                            TileEntity tileentity = worldIn.getTileEntity(blockpos);
-
-                            if (tileentity != null) {
-                                if (tileentity instanceof IInventory) {
-                                    ((IInventory) tileentity).clear();
-                                }
-
-                                worldIn.setBlockState(blockpos, Blocks.BARRIER.getDefaultState(), 4);
-                            }
-                        }
-
-                        if (worldIn.setBlockState(blockpos, iblockstate1, 2) && template$blockinfo1.tileentityData != null) {
-                            TileEntity tileentity2 = worldIn.getTileEntity(blockpos);
-
-                            if (tileentity2 != null) {
-                                template$blockinfo1.tileentityData.setInteger("x", blockpos.getX());
-                                template$blockinfo1.tileentityData.setInteger("y", blockpos.getY());
-                                template$blockinfo1.tileentityData.setInteger("z", blockpos.getZ());
-                                tileentity2.readFromNBT(template$blockinfo1.tileentityData);
-                                tileentity2.mirror(placementIn.getMirror());
-                                tileentity2.rotate(placementIn.getRotation());
-                            }
-                        }
-                    }
-                }
-            }
-
-            for (Template.BlockInfo template$blockinfo2 : this.blocks) {
-                if (block == null || block != template$blockinfo2.blockState.getBlock()) {
-                    BlockPos blockpos1 = transformedBlockPos(placementIn, template$blockinfo2.pos).add(pos).add(recenterRotation((size.getX() - 1) / 2, placementIn));
-
-                    if (structureboundingbox == null || structureboundingbox.isVecInside(blockpos1)) {
-                        worldIn.notifyNeighborsRespectDebug(blockpos1, template$blockinfo2.blockState.getBlock(), false);
-
-                        if (template$blockinfo2.tileentityData != null) {
-                            TileEntity tileentity1 = worldIn.getTileEntity(blockpos1);
+    public void spawnBlocksAndEntities(World worldIn, BlockPos pos, PlacementSettings placementIn, Map<BlockPos, Block> occupiedPositions, BlockSet overridableBlocks, List<BlockPos> outSpawnedBlocks, List<Entity> outSpawnedEntities) {
+        spawnBlocksAndEntities(worldIn, pos, placementIn, occupiedPositions, overridableBlocks, outSpawnedBlocks, outSpawnedEntities, new CapsuleBlockWriter(worldIn, false));
+    }
 
-                            if (tileentity1 != null) {
-                                tileentity1.markDirty();
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        if (!placementIn.getIgnoreEntities()) {
-            this.addEntitiesToWorld(worldIn, pos, placementIn.getMirror(), placementIn.getRotation(), structureboundingbox, outSpawnedEntities);
-        }
+    public void spawnBlocksAndEntities(World worldIn, BlockPos pos, PlacementSettings placementIn, Map<BlockPos, Block> occupiedPositions, BlockSet overridableBlocks, List<BlockPos> outSpawnedBlocks, List<Entity> outSpawnedEntities, CapsuleBlockWriter blockWriter) {
+        // CAPSULE placement is done by CapsuleTemplateDeploy, that can also spread it over several ticks
+        new CapsuleTemplateDeploy(this, worldIn, pos, placementIn, occupiedPositions, overridableBlocks, outSpawnedBlocks, outSpawnedEntities, blockWriter).runAll();
     }
 
 
@@ -553,9 +523,12 @@ public class CapsuleTemplate {
         if (!this.blocks.isEmpty() && this.size.getX() >= 1 && this.size.getY() >= 1 && this.size.getZ() >= 1) {
             Block block = placementSettings.getReplacedBlock();
             StructureBoundingBox structureboundingbox = placementSettings.getBoundingBox();
+            CapsulePlacementPlan plan = getPlacementPlan(placementSettings);
+            BlockPos origin = blockPos.add(recenterRotation((size.getX() - 1) / 2, placementSettings));
 
-            for (Template.BlockInfo template$blockinfo : this.blocks) {
-                BlockPos blockpos = transformedBlockPos(placementSettings, template$blockinfo.pos).add(blockPos).add(recenterRotation((size.getX() - 1) / 2, placementSettings));
+            for (int i = 0; i < this.blocks.size(); i++) {
+                Template.BlockInfo template$blockinfo = this.blocks.get(i);
+                BlockPos blockpos = plan.getPosition(i, origin);
                 Template.BlockInfo template$blockinfo1 = blockRotationProcessor.processBlock(world, blockpos, template$blockinfo);
 
                 if (template$blockinfo1 != null) {
@@ -595,6 +568,21 @@ public class CapsuleTemplate {
         return true;
     }
 
+    /**
+     * CAPSULE block list counting its modifications, so that what is computed from the blocks can be invalidated.
+     */
+    private static class BlockList extends ArrayList<Template.BlockInfo> {
+        @Override
+        public Template.BlockInfo set(int index, Template.BlockInfo element) {
+            this.modCount++;
+            return super.set(index, element);
+        }
+
+        int getRevision() {
+            return this.modCount;
+        }
+    }
+
     // SCHEMATIC STUFF BELOW
 
     // inspired by https://github.com/maruohon/worldprimer/blob/master/src/main/java/fi/dy/masa/worldprimer/util/Schematic.java
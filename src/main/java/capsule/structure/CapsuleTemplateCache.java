@@ -0,0 +1,178 @@
+package capsule.structure;
+
+import capsule.Config;
+import capsule.helpers.MinecraftNBT;
+import net.minecraft.world.gen.structure.template.Template;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of loaded templates, bounded by the estimated heap weight of the templates.
+ * Deployed templates and templates pinned (ie. capsule in flight) are never evicted.
+ * An evicted template is read again from disk (or from the template writer queue) on next access.
+ *
+ * @author Lythom
+ */
+public class CapsuleTemplateCache {
+
+    protected static final Logger LOGGER = LogManager.getLogger(CapsuleTemplateCache.class);
+
+    private static final long BLOCK_WEIGHT = 80;
+    private static final long ENTITY_WEIGHT = 120;
+    private static final long OCCUPIED_POSITION_WEIGHT = 64;
+    private static final long TEMPLATE_WEIGHT = 256;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> pinnedUntil = new HashMap<>();
+    private long weight = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Get the template and mark it as recently used. Counts as hit or miss.
+     */
+    @Nullable
+    public CapsuleTemplate get(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.template;
+    }
+
+    /**
+     * Get the template without counting a hit or a miss.
+     */
+    @Nullable
+    public CapsuleTemplate peek(String name) {
+        Entry entry = entries.get(name);
+        return entry == null ? null : entry.template;
+    }
+
+    public boolean containsKey(String name) {
+        return entries.containsKey(name);
+    }
+
+    public void put(String name, CapsuleTemplate template) {
+        Entry entry = new Entry(template, weigh(template));
+        Entry previous = entries.put(name, entry);
+        if (previous != null) weight -= previous.weight;
+        weight += entry.weight;
+        evictIfNeeded(name);
+    }
+
+    /**
+     * Template content changed, update its weight.
+     */
+    public void reweigh(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) return;
+        long newWeight = weigh(entry.template);
+        weight += newWeight - entry.weight;
+        entry.weight = newWeight;
+        evictIfNeeded(name);
+    }
+
+    public void remove(String name) {
+        Entry previous = entries.remove(name);
+        if (previous != null) weight -= previous.weight;
+        pinnedUntil.remove(name);
+    }
+
+    /**
+     * Prevent the template from being evicted for the given duration.
+     */
+    public void pin(String name, long durationMillis) {
+        long until = System.currentTimeMillis() + durationMillis;
+        pinnedUntil.merge(name, until, Math::max);
+    }
+
+    public void unpin(String name) {
+        pinnedUntil.remove(name);
+    }
+
+    private boolean isPinned(String name, CapsuleTemplate template, long now) {
+        // deployed capsule content must stay available for the undeploy
+        if (template.occupiedPositions != null) return true;
+        Long until = pinnedUntil.get(name);
+        if (until == null) return false;
+        if (until < now) {
+            pinnedUntil.remove(name);
+            return false;
+        }
+        return true;
+    }
+
+    private void evictIfNeeded(String justUsedName) {
+        long maxWeight = Config.templateCacheMaxMegabytes * 1024L * 1024L;
+        if (weight <= maxWeight) return;
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (weight > maxWeight && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            String name = eldest.getKey();
+            if (name.equals(justUsedName) || isPinned(name, eldest.getValue().template, now)) continue;
+            iterator.remove();
+            weight -= eldest.getValue().weight;
+            evictions++;
+            LOGGER.debug("Template " + name + " evicted from cache");
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getWeight() {
+        return weight;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Estimation of the heap used by the template, in bytes.
+     */
+    public static long weigh(CapsuleTemplate template) {
+        long w = TEMPLATE_WEIGHT;
+        for (Template.BlockInfo block : template.blocks) {
+            w += BLOCK_WEIGHT + MinecraftNBT.estimateSize(block.tileentityData);
+        }
+        for (Template.EntityInfo entity : template.entities) {
+            w += ENTITY_WEIGHT + MinecraftNBT.estimateSize(entity.entityData);
+        }
+        if (template.occupiedPositions != null) {
+            w += OCCUPIED_POSITION_WEIGHT * template.occupiedPositions.size();
+        }
+        return w;
+    }
+
+    private static class Entry {
+        final CapsuleTemplate template;
+        long weight;
+
+        Entry(CapsuleTemplate template, long weight) {
+            this.template = template;
+            this.weight = weight;
+        }
+    }
+}
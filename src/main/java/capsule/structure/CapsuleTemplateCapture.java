@@ -0,0 +1,201 @@
+package capsule.structure;
+
+import capsule.helpers.BlockSet;
+import com.google.common.collect.Lists;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.init.Blocks;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+import net.minecraft.world.gen.structure.template.Template;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Captures the blocks of a world region by reading the chunk sections directly instead of querying the world for each position.
+ * Empty sections are skipped, and tile entities are only looked up for blocks having one.
+ * Blocks are visited in the same order as BlockPos.getAllInBoxMutable (x, then y, then z) so the template keeps the same block order.
+ * The region can be captured at once, or layer by layer.
+ *
+ * @author Lythom
+ */
+public class CapsuleTemplateCapture {
+
+    private final World world;
+    private final BlockPos min;
+    private final BlockPos max;
+    private final BlockSet excludedBlocks;
+    private final boolean airExcluded;
+    @Nullable
+    private final Long2ObjectOpenHashMap<Block> ignoredPositions;
+
+    private final List<Template.BlockInfo> fullBlocks = Lists.newArrayList();
+    private final List<Template.BlockInfo> tileEntityBlocks = Lists.newArrayList();
+    private final List<Template.BlockInfo> otherBlocks = Lists.newArrayList();
+    private final List<BlockPos> capturedPositions = new ArrayList<>();
+    private final List<Template.BlockInfo> capturedBlocks = new ArrayList<>();
+
+    private final BlockPos.MutableBlockPos cursor = new BlockPos.MutableBlockPos();
+    private final Chunk[] layerChunks;
+    private int layerChunkZ = Integer.MIN_VALUE;
+    private int nextZ;
+
+    /**
+     * @param min                       lowest corner of the region, included
+     * @param max                       highest corner of the region, included
+     * @param occupiedPositionsToIgnore positions not to capture if they still contain the same block
+     * @param excluded                  blocks never captured
+     */
+    public CapsuleTemplateCapture(World world, BlockPos min, BlockPos max, @Nullable Map<BlockPos, Block> occupiedPositionsToIgnore, @Nullable BlockSet excluded) {
+        this.world = world;
+        this.min = min;
+        this.max = max;
+        this.excludedBlocks = excluded != null ? excluded : BlockSet.of();
+        this.airExcluded = this.excludedBlocks.contains(Blocks.AIR);
+        if (occupiedPositionsToIgnore != null) {
+            this.ignoredPositions = new Long2ObjectOpenHashMap<>(occupiedPositionsToIgnore.size());
+            for (Map.Entry<BlockPos, Block> entry : occupiedPositionsToIgnore.entrySet()) {
+                this.ignoredPositions.put(entry.getKey().toLong(), entry.getValue());
+            }
+        } else {
+            this.ignoredPositions = null;
+        }
+        this.layerChunks = new Chunk[(max.getX() >> 4) - (min.getX() >> 4) + 1];
+        this.nextZ = min.getZ();
+    }
+
+    public boolean isDone() {
+        return this.nextZ > this.max.getZ();
+    }
+
+    /**
+     * Capture the next layers of the region (along Z).
+     *
+     * @return true if the whole region is now captured
+     */
+    public boolean captureLayers(int layerCount) {
+        for (int i = 0; i < layerCount && !isDone(); i++) {
+            captureLayer(this.nextZ++);
+        }
+        return isDone();
+    }
+
+    /**
+     * @return fraction of the region captured, between 0 and 1
+     */
+    public float getProgress() {
+        return (float) (this.nextZ - this.min.getZ()) / (this.max.getZ() - this.min.getZ() + 1);
+    }
+
+    public void captureAll() {
+        while (!isDone()) {
+            captureLayer(this.nextZ++);
+        }
+    }
+
+    private void captureLayer(int z) {
+        if (z >> 4 != this.layerChunkZ) {
+            this.layerChunkZ = z >> 4;
+            for (int i = 0; i < this.layerChunks.length; i++) {
+                this.layerChunks[i] = this.world.getChunkFromChunkCoords((this.min.getX() >> 4) + i, this.layerChunkZ);
+            }
+        }
+        for (int y = this.min.getY(); y <= this.max.getY(); y++) {
+            boolean outsideWorld = y < 0 || y >= this.world.getHeight();
+            int x = this.min.getX();
+            while (x <= this.max.getX()) {
+                int sectionEndX = Math.min(this.max.getX(), x | 15);
+                Chunk chunk = this.layerChunks[(x >> 4) - (this.min.getX() >> 4)];
+                ExtendedBlockStorage section = outsideWorld ? null : chunk.getBlockStorageArray()[y >> 4];
+                if (section == null || section.isEmpty()) {
+                    // nothing but air in that section
+                    if (!this.airExcluded) {
+                        for (; x <= sectionEndX; x++) {
+                            captureBlock(chunk, x, y, z, Blocks.AIR.getDefaultState());
+                        }
+                    }
+                } else {
+                    for (; x <= sectionEndX; x++) {
+                        captureBlock(chunk, x, y, z, section.get(x & 15, y & 15, z & 15));
+                    }
+                }
+                x = sectionEndX + 1;
+            }
+        }
+    }
+
+    private void captureBlock(Chunk chunk, int x, int y, int z, IBlockState state) {
+        Block block = state.getBlock();
+        if (this.excludedBlocks.contains(block)) return;
+        this.cursor.setPos(x, y, z);
+        if (this.ignoredPositions != null) {
+            // exclude blocks that were already presents. Capture only if it was changed.
+            Block ignoredBlock = this.ignoredPositions.get(this.cursor.toLong());
+            if (ignoredBlock != null && ignoredBlock.equals(block)) return;
+        }
+
+        BlockPos relativePos = new BlockPos(x - this.min.getX(), y - this.min.getY(), z - this.min.getZ());
+        TileEntity tileentity = null;
+        if (block.hasTileEntity(state)) {
+            tileentity = chunk.getTileEntityMap().get(this.cursor);
+            if (tileentity == null) {
+                // not created yet or still being added
+                tileentity = this.world.getTileEntity(this.cursor);
+            }
+        }
+        Template.BlockInfo blockInfo;
+        if (tileentity != null) {
+            blockInfo = new Template.BlockInfo(relativePos, state, writeTileEntity(tileentity));
+            this.tileEntityBlocks.add(blockInfo);
+        } else if (!state.isFullBlock() && !state.isFullCube()) {
+            blockInfo = new Template.BlockInfo(relativePos, state, null);
+            this.otherBlocks.add(blockInfo);
+        } else {
+            blockInfo = new Template.BlockInfo(relativePos, state, null);
+            this.fullBlocks.add(blockInfo);
+        }
+        this.capturedPositions.add(this.cursor.toImmutable());
+        this.capturedBlocks.add(blockInfo);
+    }
+
+    /**
+     * @return tile entity data as stored in a template, without its world position.
+     */
+    public static NBTTagCompound writeTileEntity(TileEntity tileentity) {
+        NBTTagCompound nbttagcompound = tileentity.writeToNBT(new NBTTagCompound());
+        nbttagcompound.removeTag("x");
+        nbttagcompound.removeTag("y");
+        nbttagcompound.removeTag("z");
+        return nbttagcompound;
+    }
+
+    /**
+     * Replace the template blocks with the captured blocks: full blocks first, then tile entities, then blocks needing a support.
+     */
+    public void applyTo(CapsuleTemplate template) {
+        template.blocks.clear();
+        template.blocks.addAll(this.fullBlocks);
+        template.blocks.addAll(this.tileEntityBlocks);
+        template.blocks.addAll(this.otherBlocks);
+    }
+
+    /**
+     * @return world positions of the captured blocks, in capture order.
+     */
+    public List<BlockPos> getCapturedPositions() {
+        return this.capturedPositions;
+    }
+
+    /**
+     * @return captured blocks, in the same order as {@link #getCapturedPositions()}.
+     */
+    public List<Template.BlockInfo> getCapturedBlocks() {
+        return this.capturedBlocks;
+    }
+}
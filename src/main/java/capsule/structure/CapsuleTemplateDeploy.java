@@ -0,0 +1,262 @@
+package capsule.structure;
+
+import capsule.helpers.BlockSet;
+import com.google.common.collect.Lists;
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.entity.Entity;
+import net.minecraft.init.Blocks;
+import net.minecraft.inventory.IInventory;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import net.minecraft.world.gen.structure.StructureBoundingBox;
+import net.minecraft.world.gen.structure.template.BlockRotationProcessor;
+import net.minecraft.world.gen.structure.template.ITemplateProcessor;
+import net.minecraft.world.gen.structure.template.PlacementSettings;
+import net.minecraft.world.gen.structure.template.Template;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Places the content of a template in the world, from the capsule version of Template.addBlocksToWorld.
+ * The work is split in steps so that it can be spread over several ticks: blocks are placed first,
+ * then tile entities data are applied, then neighbors are notified, then entities are spawned.
+ *
+ * @author Lythom
+ */
+public class CapsuleTemplateDeploy {
+
+    private static final int STAGE_BLOCKS = 0;
+    private static final int STAGE_TILE_ENTITIES = 1;
+    private static final int STAGE_NEIGHBORS = 2;
+    private static final int STAGE_ENTITIES = 3;
+    private static final int STAGE_DONE = 4;
+
+    /**
+     * Number of blocks handled between two checks of the elapsed time.
+     */
+    private static final int CHECK_INTERVAL = 32;
+
+    private final CapsuleTemplate template;
+    private final World world;
+    private final BlockPos pos;
+    private final PlacementSettings placement;
+    private final Map<BlockPos, Block> occupiedPositions;
+    private final BlockSet overridableBlocks;
+    @Nullable
+    private final List<BlockPos> outSpawnedBlocks;
+    @Nullable
+    private final List<Entity> outSpawnedEntities;
+    private final CapsuleBlockWriter blockWriter;
+
+    private final ITemplateProcessor templateProcessor;
+    private final CapsulePlacementPlan plan;
+    /** deploy position including the rotation recenter offset */
+    private final BlockPos origin;
+    @Nullable
+    private final Block replacedBlock;
+    @Nullable
+    private final StructureBoundingBox structureBoundingBox;
+    /** placed blocks having tile entity data, with their world position */
+    private final List<Template.BlockInfo> placedTileEntities = Lists.newArrayList();
+
+    private int stage;
+    private int index = 0;
+
+    public CapsuleTemplateDeploy(CapsuleTemplate template, World world, BlockPos pos, PlacementSettings placement, Map<BlockPos, Block> occupiedPositions,
+                                 BlockSet overridableBlocks, @Nullable List<BlockPos> outSpawnedBlocks, @Nullable List<Entity> outSpawnedEntities) {
+        this(template, world, pos, placement, occupiedPositions, overridableBlocks, outSpawnedBlocks, outSpawnedEntities, new CapsuleBlockWriter(world, false));
+    }
+
+    public CapsuleTemplateDeploy(CapsuleTemplate template, World world, BlockPos pos, PlacementSettings placement, Map<BlockPos, Block> occupiedPositions,
+                                 BlockSet overridableBlocks, @Nullable List<BlockPos> outSpawnedBlocks, @Nullable List<Entity> outSpawnedEntities,
+                                 CapsuleBlockWriter blockWriter) {
+        this.template = template;
+        this.world = world;
+        this.pos = pos;
+        this.placement = placement;
+        this.occupiedPositions = occupiedPositions;
+        this.overridableBlocks = overridableBlocks;
+        this.outSpawnedBlocks = outSpawnedBlocks;
+        this.outSpawnedEntities = outSpawnedEntities;
+        this.blockWriter = blockWriter;
+        this.templateProcessor = new BlockRotationProcessor(pos, placement);
+        this.replacedBlock = placement.getReplacedBlock();
+        this.structureBoundingBox = placement.getBoundingBox();
+        this.plan = template.getPlacementPlan(placement);
+
+        BlockPos size = template.getSize();
+        if (size == null) {
+            this.origin = pos;
+            this.stage = STAGE_DONE;
+        } else {
+            this.origin = pos.add(CapsuleTemplate.recenterRotation((size.getX() - 1) / 2, placement));
+            boolean hasBlocks = !template.blocks.isEmpty() && size.getX() >= 1 && size.getY() >= 1 && size.getZ() >= 1;
+            this.stage = hasBlocks ? STAGE_BLOCKS : STAGE_ENTITIES;
+        }
+    }
+
+    public boolean isDone() {
+        return this.stage == STAGE_DONE;
+    }
+
+    /**
+     * Run the deployment to the end.
+     */
+    public void runAll() {
+        run(Long.MAX_VALUE);
+    }
+
+    /**
+     * Run the deployment until done or until the time budget is spent.
+     *
+     * @return true if the deployment is complete
+     */
+    public boolean run(long budgetNanos) {
+        long start = System.nanoTime();
+        while (!isDone()) {
+            if (this.index % CHECK_INTERVAL == 0 && System.nanoTime() - start > budgetNanos) {
+                this.blockWriter.flush();
+                return false;
+            }
+            switch (this.stage) {
+                case STAGE_BLOCKS:
+                    if (this.index < this.template.blocks.size()) {
+                        placeBlock(this.index++);
+                    } else {
+                        nextStage(STAGE_TILE_ENTITIES);
+                    }
+                    break;
+                case STAGE_TILE_ENTITIES:
+                    if (this.index < this.placedTileEntities.size()) {
+                        applyTileEntityData(this.placedTileEntities.get(this.index++));
+                    } else {
+                        nextStage(STAGE_NEIGHBORS);
+                    }
+                    break;
+                case STAGE_NEIGHBORS:
+                    if (this.index < this.template.blocks.size()) {
+                        notifyNeighbors(this.index++);
+                    } else {
+                        nextStage(STAGE_ENTITIES);
+                    }
+                    break;
+                case STAGE_ENTITIES:
+                    if (!this.placement.getIgnoreEntities()) {
+                        this.template.addEntitiesToWorld(this.world, this.pos, this.placement.getMirror(), this.placement.getRotation(), this.structureBoundingBox, this.outSpawnedEntities);
+                    }
+                    nextStage(STAGE_DONE);
+                    break;
+                default:
+                    nextStage(STAGE_DONE);
+            }
+        }
+        this.blockWriter.flush();
+        return true;
+    }
+
+    /**
+     * @return fraction of the work done, between 0 and 1
+     */
+    public float getProgress() {
+        if (isDone()) return 1;
+        int blockCount = Math.max(1, this.template.blocks.size());
+        switch (this.stage) {
+            case STAGE_BLOCKS:
+                return 0.8f * this.index / blockCount;
+            case STAGE_TILE_ENTITIES:
+                return 0.8f + 0.05f * this.index / Math.max(1, this.placedTileEntities.size());
+            case STAGE_NEIGHBORS:
+                return 0.85f + 0.15f * this.index / blockCount;
+            default:
+                return 1;
+        }
+    }
+
+    private void nextStage(int stage) {
+        this.stage = stage;
+        this.index = 0;
+    }
+
+    private void placeBlock(int blockIndex) {
+        Template.BlockInfo template$blockinfo = this.template.blocks.get(blockIndex);
+        BlockPos blockpos = this.plan.getPosition(blockIndex, this.origin);
+        Template.BlockInfo template$blockinfo1 = this.templateProcessor.processBlock(this.world, blockpos, template$blockinfo);
+
+        if (template$blockinfo1 != null) {
+            Block block1 = template$blockinfo1.blockState.getBlock();
+
+            if ((this.replacedBlock == null || this.replacedBlock != block1)
+                    && (!this.placement.getIgnoreStructureBlock() || block1 != Blocks.STRUCTURE_BLOCK)
+                    && (this.structureBoundingBox == null || this.structureBoundingBox.isVecInside(blockpos))
+                    // CAPSULE add a condition to prevent replacement of existing content by the capsule content if the world content is not overridable
+                    && (!this.occupiedPositions.containsKey(blockpos) || this.overridableBlocks.contains(this.occupiedPositions.get(blockpos)))
+            ) {
+                // CAPSULE capsule addition to allow a rollback in case of error while deploying
+                if (this.outSpawnedBlocks != null) this.outSpawnedBlocks.add(blockpos);
+
+                // CAPSULE the plan has the state transformed already, unless the processor changed it
+                IBlockState iblockstate1 = template$blockinfo1 == template$blockinfo
+                        ? this.plan.getState(blockIndex)
+                        : template$blockinfo1.blockState.withMirror(this.placement.getMirror()).withRotation(this.placement.getRotation());
+
+                if (template$blockinfo1.tileentityData != null) {
+                    TileEntity tileentity = this.world.getTileEntity(blockpos);
+
+                    if (tileentity != null) {
+                        if (tileentity instanceof IInventory) {
+                            ((IInventory) tileentity).clear();
+                        }
+
+                        this.blockWriter.setBlockState(blockpos, Blocks.BARRIER.getDefaultState(), 4);
+                    }
+                }
+
+                if (this.blockWriter.setBlockState(blockpos, iblockstate1, 2) && template$blockinfo1.tileentityData != null) {
+                    // CAPSULE tile entity data is applied once all blocks are placed
+                    this.placedTileEntities.add(new Template.BlockInfo(blockpos, iblockstate1, template$blockinfo1.tileentityData));
+                }
+            }
+        }
+    }
+
+    private void applyTileEntityData(Template.BlockInfo placed) {
+        TileEntity tileentity2 = this.world.getTileEntity(placed.pos);
+
+        if (tileentity2 != null) {
+            // CAPSULE work on a copy: the template data can be in use by the template writer
+            NBTTagCompound tileentityData = placed.tileentityData.copy();
+            tileentityData.setInteger("x", placed.pos.getX());
+            tileentityData.setInteger("y", placed.pos.getY());
+            tileentityData.setInteger("z", placed.pos.getZ());
+            tileentity2.readFromNBT(tileentityData);
+            tileentity2.mirror(this.placement.getMirror());
+            tileentity2.rotate(this.placement.getRotation());
+            // CAPSULE clients may have received the block before its data
+            this.blockWriter.markForUpdate(placed.pos);
+        }
+    }
+
+    private void notifyNeighbors(int blockIndex) {
+        Template.BlockInfo template$blockinfo2 = this.template.blocks.get(blockIndex);
+        if (this.replacedBlock == null || this.replacedBlock != template$blockinfo2.blockState.getBlock()) {
+            BlockPos blockpos1 = this.plan.getPosition(blockIndex, this.origin);
+
+            if (this.structureBoundingBox == null || this.structureBoundingBox.isVecInside(blockpos1)) {
+                this.world.notifyNeighborsRespectDebug(blockpos1, template$blockinfo2.blockState.getBlock(), false);
+
+                if (template$blockinfo2.tileentityData != null) {
+                    TileEntity tileentity1 = this.world.getTileEntity(blockpos1);
+
+                    if (tileentity1 != null) {
+                        tileentity1.markDirty();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package capsule.structure;
+
+import com.google.common.hash.Hashing;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.init.Blocks;
+import net.minecraft.nbt.*;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.gen.structure.template.Template;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact ".capsule" template file format, written instead of the structure block ".nbt" format when configured.
+ * <p>
+ * Layout: magic number, format version, an uncompressed NBT header (see {@link CapsuleTemplateHeader}),
+ * then a gzip body containing the dimensions, the palette indices of every position bit-packed in a long array
+ * (Y, then Z, then X order, palette index 0 meaning no block), and a last NBT section with the block-state palette,
+ * the tile entities (keyed by position index) and the entities.
+ * Occupied positions of a deployed capsule are not part of the template file, they have their own file.
+ * Since version 2, captured air blocks have their own palette entry: version 1 wrote them as "no block".
+ *
+ * @author Lythom
+ */
+public class CapsuleTemplateFormat {
+
+    public static final String EXTENSION = ".capsule";
+    private static final int MAGIC = 0x43415053; // "CAPS"
+    private static final byte VERSION = 2;
+    /** palette index of the positions without block */
+    private static final int NO_BLOCK = 0;
+
+    /**
+     * The format can only store blocks at positive positions relative to the template origin.
+     */
+    public static boolean canWrite(CapsuleTemplate template) {
+        for (Template.BlockInfo block : template.blocks) {
+            BlockPos pos = block.pos;
+            if (pos.getX() < 0 || pos.getY() < 0 || pos.getZ() < 0) return false;
+        }
+        return true;
+    }
+
+    public static void write(CapsuleTemplate template, OutputStream stream) throws IOException {
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        writeBody(template, body);
+        body.flush();
+        byte[] bytes = bodyBytes.toByteArray();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        CompressedStreamTools.write(CapsuleTemplateHeader.of(template, contentHash(bytes, template.author)).writeToNBT(new NBTTagCompound()), out);
+        out.flush();
+
+        GZIPOutputStream compressed = new GZIPOutputStream(stream);
+        compressed.write(bytes);
+        compressed.finish();
+        compressed.flush();
+    }
+
+    /**
+     * @return hash identifying the template content (blocks and entities) and its author. The author is part of the
+     * header, shared templates having the same content but different authors are stored apart.
+     */
+    public static String contentHash(CapsuleTemplate template) throws IOException {
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        writeBody(template, body);
+        body.flush();
+        return contentHash(bodyBytes.toByteArray(), template.author);
+    }
+
+    private static String contentHash(byte[] body, String author) {
+        return Hashing.sha256().newHasher()
+                .putBytes(body)
+                .putString(String.valueOf(author), StandardCharsets.UTF_8)
+                .hash().toString();
+    }
+
+    public static void read(CapsuleTemplate template, InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        CapsuleTemplateHeader header = readHeader(in);
+        readBody(template, header, new DataInputStream(new BufferedInputStream(new GZIPInputStream(in))));
+    }
+
+    /**
+     * Read the uncompressed header only, without reading the body.
+     */
+    public static CapsuleTemplateHeader readHeader(InputStream stream) throws IOException {
+        return readHeader(new DataInputStream(new BufferedInputStream(stream)));
+    }
+
+    private static CapsuleTemplateHeader readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("Not a capsule template file");
+        byte version = in.readByte();
+        if (version > VERSION) throw new IOException("Unsupported capsule template file version " + version);
+        return CapsuleTemplateHeader.readFromNBT(CompressedStreamTools.read(in, NBTSizeTracker.INFINITE));
+    }
+
+    private static void writeBody(CapsuleTemplate template, DataOutputStream out) throws IOException {
+        // stored volume can be larger than size for some imported schematics
+        int dx = Math.max(1, template.size.getX());
+        int dy = Math.max(1, template.size.getY());
+        int dz = Math.max(1, template.size.getZ());
+        for (Template.BlockInfo block : template.blocks) {
+            dx = Math.max(dx, block.pos.getX() + 1);
+            dy = Math.max(dy, block.pos.getY() + 1);
+            dz = Math.max(dz, block.pos.getZ() + 1);
+        }
+
+        List<IBlockState> palette = new ArrayList<>();
+        Map<IBlockState, Integer> paletteIds = new IdentityHashMap<>();
+        // index 0 is the "no block" sentinel, its state is never read. Captured air blocks get an entry of their own.
+        palette.add(Blocks.AIR.getDefaultState());
+        for (Template.BlockInfo block : template.blocks) {
+            if (!paletteIds.containsKey(block.blockState)) {
+                paletteIds.put(block.blockState, palette.size());
+                palette.add(block.blockState);
+            }
+        }
+
+        int bits = bitsFor(palette.size());
+        int entriesPerLong = 64 / bits;
+        long[] data = new long[(int) (((long) dx * dy * dz + entriesPerLong - 1) / entriesPerLong)];
+        NBTTagList tileEntities = new NBTTagList();
+        for (Template.BlockInfo block : template.blocks) {
+            int index = (block.pos.getY() * dz + block.pos.getZ()) * dx + block.pos.getX();
+            int shift = (index % entriesPerLong) * bits;
+            data[index / entriesPerLong] |= ((long) paletteIds.get(block.blockState)) << shift;
+            if (block.tileentityData != null) {
+                NBTTagCompound te = new NBTTagCompound();
+                te.setInteger("i", index);
+                te.setTag("nbt", block.tileentityData);
+                tileEntities.appendTag(te);
+            }
+        }
+
+        out.writeInt(dx);
+        out.writeInt(dy);
+        out.writeInt(dz);
+        out.writeByte(bits);
+        out.writeInt(data.length);
+        for (long l : data) {
+            out.writeLong(l);
+        }
+
+        NBTTagList paletteList = new NBTTagList();
+        for (IBlockState state : palette) {
+            paletteList.appendTag(NBTUtil.writeBlockState(new NBTTagCompound(), state));
+        }
+        NBTTagCompound sections = new NBTTagCompound();
+        sections.setInteger("DataVersion", 1343);
+        sections.setTag("palette", paletteList);
+        sections.setTag("tileEntities", tileEntities);
+        sections.setTag("entities", template.writeEntities());
+        CompressedStreamTools.write(sections, out);
+    }
+
+    private static void readBody(CapsuleTemplate template, CapsuleTemplateHeader header, DataInputStream in) throws IOException {
+        int dx = in.readInt();
+        int dy = in.readInt();
+        int dz = in.readInt();
+        int bits = in.readByte();
+        long[] data = new long[in.readInt()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = in.readLong();
+        }
+        NBTTagCompound sections = CompressedStreamTools.read(in, NBTSizeTracker.INFINITE);
+
+        NBTTagList paletteList = sections.getTagList("palette", 10);
+        IBlockState[] palette = new IBlockState[paletteList.tagCount()];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = NBTUtil.readBlockState(paletteList.getCompoundTagAt(i));
+        }
+        NBTTagList tileEntitiesList = sections.getTagList("tileEntities", 10);
+        Int2ObjectOpenHashMap<NBTTagCompound> tileEntities = new Int2ObjectOpenHashMap<>(tileEntitiesList.tagCount());
+        for (int i = 0; i < tileEntitiesList.tagCount(); i++) {
+            NBTTagCompound te = tileEntitiesList.getCompoundTagAt(i);
+            tileEntities.put(te.getInteger("i"), te.getCompoundTag("nbt"));
+        }
+
+        template.size = header.getSize();
+        template.author = header.getAuthor();
+
+        // same ordering as a world snapshot: full blocks, then tile entities, then blocks needing a support
+        List<Template.BlockInfo> fullBlocks = new ArrayList<>();
+        List<Template.BlockInfo> tileEntityBlocks = new ArrayList<>();
+        List<Template.BlockInfo> otherBlocks = new ArrayList<>();
+        int entriesPerLong = 64 / bits;
+        long mask = (1L << bits) - 1;
+        int index = 0;
+        for (int y = 0; y < dy; y++) {
+            for (int z = 0; z < dz; z++) {
+                for (int x = 0; x < dx; x++, index++) {
+                    int paletteId = (int) ((data[index / entriesPerLong] >>> ((index % entriesPerLong) * bits)) & mask);
+                    if (paletteId == NO_BLOCK || paletteId >= palette.length) continue;
+                    IBlockState state = palette[paletteId];
+                    NBTTagCompound tileentityData = tileEntities.get(index);
+                    Template.BlockInfo blockInfo = new Template.BlockInfo(new BlockPos(x, y, z), state, tileentityData);
+                    if (tileentityData != null) {
+                        tileEntityBlocks.add(blockInfo);
+                    } else if (!state.isFullBlock() && !state.isFullCube()) {
+                        otherBlocks.add(blockInfo);
+                    } else {
+                        fullBlocks.add(blockInfo);
+                    }
+                }
+            }
+        }
+        template.blocks.clear();
+        template.blocks.addAll(fullBlocks);
+        template.blocks.addAll(tileEntityBlocks);
+        template.blocks.addAll(otherBlocks);
+
+        template.readEntities(sections.getTagList("entities", 10));
+        // legacy: occupied positions used to be written in the template file
+        if (sections.hasKey("capsule_occupiedSources")) {
+            template.readOccupiedPositions(sections.getTagList("capsule_occupiedSources", 10));
+            template.occupiedPositionsInFile = true;
+        }
+    }
+
+    private static int bitsFor(int paletteSize) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(paletteSize - 1));
+    }
+}
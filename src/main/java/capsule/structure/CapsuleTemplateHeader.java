@@ -0,0 +1,130 @@
+package capsule.structure;
+
+import capsule.Config;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.nbt.NBTTagString;
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.gen.structure.template.Template;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Metadata of a template, available without materializing the template blocks.
+ * Stored as the header of .capsule files.
+ *
+ * @author Lythom
+ */
+public class CapsuleTemplateHeader {
+
+    private final BlockPos size;
+    private final String author;
+    private final int blockCount;
+    private final int entityCount;
+    private final Set<String> tileEntityBlocks;
+    @Nullable
+    private final String contentHash;
+
+    public CapsuleTemplateHeader(BlockPos size, String author, int blockCount, int entityCount, Set<String> tileEntityBlocks, @Nullable String contentHash) {
+        this.size = size;
+        this.author = author;
+        this.blockCount = blockCount;
+        this.entityCount = entityCount;
+        this.tileEntityBlocks = Collections.unmodifiableSet(tileEntityBlocks);
+        this.contentHash = contentHash;
+    }
+
+    public static CapsuleTemplateHeader of(CapsuleTemplate template) {
+        return of(template, null);
+    }
+
+    public static CapsuleTemplateHeader of(CapsuleTemplate template, @Nullable String contentHash) {
+        Set<String> tileEntityBlocks = new TreeSet<>();
+        for (Template.BlockInfo block : template.blocks) {
+            if (block.tileentityData != null) {
+                ResourceLocation registryName = block.blockState.getBlock().getRegistryName();
+                tileEntityBlocks.add(registryName == null ? "" : registryName.toString());
+            }
+        }
+        return new CapsuleTemplateHeader(template.size, template.author, template.blocks.size(), template.entities.size(), tileEntityBlocks, contentHash);
+    }
+
+    public static CapsuleTemplateHeader readFromNBT(NBTTagCompound nbt) {
+        int[] size = nbt.getIntArray("size");
+        Set<String> tileEntityBlocks = new TreeSet<>();
+        NBTTagList tileEntityBlocksList = nbt.getTagList("tileEntityBlocks", 8);
+        for (int i = 0; i < tileEntityBlocksList.tagCount(); i++) {
+            tileEntityBlocks.add(tileEntityBlocksList.getStringTagAt(i));
+        }
+        return new CapsuleTemplateHeader(
+                size.length == 3 ? new BlockPos(size[0], size[1], size[2]) : BlockPos.ORIGIN,
+                nbt.getString("author"),
+                nbt.getInteger("blockCount"),
+                nbt.getInteger("entityCount"),
+                tileEntityBlocks,
+                nbt.hasKey("hash") ? nbt.getString("hash") : null
+        );
+    }
+
+    public NBTTagCompound writeToNBT(NBTTagCompound nbt) {
+        nbt.setIntArray("size", new int[]{size.getX(), size.getY(), size.getZ()});
+        nbt.setString("author", author);
+        nbt.setInteger("blockCount", blockCount);
+        nbt.setInteger("entityCount", entityCount);
+        NBTTagList tileEntityBlocksList = new NBTTagList();
+        for (String block : tileEntityBlocks) {
+            tileEntityBlocksList.appendTag(new NBTTagString(block));
+        }
+        nbt.setTag("tileEntityBlocks", tileEntityBlocksList);
+        if (contentHash != null) {
+            nbt.setString("hash", contentHash);
+        }
+        return nbt;
+    }
+
+    public BlockPos getSize() {
+        return size;
+    }
+
+    /**
+     * @return largest side of the template
+     */
+    public int getMaxSide() {
+        return Math.max(size.getX(), Math.max(size.getY(), size.getZ()));
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public boolean hasEntities() {
+        return entityCount > 0;
+    }
+
+    public boolean hasTileEntities() {
+        return !tileEntityBlocks.isEmpty();
+    }
+
+    /**
+     * Same as {@link CapsuleTemplate#canRotate()}: only whitelisted tile entities can be rotated.
+     */
+    public boolean canRotate() {
+        return Config.blueprintWhitelist != null && Config.blueprintWhitelist.keySet().containsAll(tileEntityBlocks);
+    }
+
+    /**
+     * @return hash of the template content, or null if the template was not read from a .capsule file.
+     */
+    @Nullable
+    public String getContentHash() {
+        return contentHash;
+    }
+}
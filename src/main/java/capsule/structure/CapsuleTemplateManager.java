@@ -1,19 +1,32 @@
 package capsule.structure;
 
-import com.google.common.collect.Maps;
+import capsule.Config;
+import capsule.helpers.Spacial;
+import capsule.network.CapsulePreview;
+import net.minecraft.block.Block;
 import net.minecraft.nbt.CompressedStreamTools;
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.util.ResourceLocation;
 import net.minecraft.util.datafix.DataFixer;
 import net.minecraft.util.datafix.FixTypes;
+import net.minecraft.util.math.AxisAlignedBB;
+import net.minecraft.world.gen.structure.template.Template;
 import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nullable;
 import java.io.*;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.Stream;
 
 /**
  * Initiated from mc original net.minecraft.world.gen.structure.template.TemplateManager, but using CapsuleTemplate instead and custom jar source folder.
@@ -22,11 +35,43 @@ import java.util.Map;
 public class CapsuleTemplateManager
 {
     protected static final Logger LOGGER = LogManager.getLogger(CapsuleTemplateManager.class);
+    public static final String FORMAT_CAPSULE = "capsule";
+    public static final String FORMAT_NBT = "nbt";
+    /** sub folder where the templates shared by several names are stored, named by their content hash. */
+    public static final String OBJECTS_FOLDER = "_objects/";
+    /** a reference file contains the content hash of a shared template. */
+    public static final String REF_EXTENSION = ".ref";
+    /** positions that were already occupied when the capsule was deployed, saved apart from the template content. */
+    public static final String OCCUPIED_EXTENSION = ".occupied";
+    /** number of merged previews kept in memory. */
+    private static final int MAX_PREVIEWS = 64;
+    /** total size of the encoded previews kept in memory. */
+    private static final int MAX_PREVIEW_BYTES = 8 * 1024 * 1024;
 
-    private final Map<String, CapsuleTemplate> templates = Maps.<String, CapsuleTemplate>newHashMap();
+    private final CapsuleTemplateCache templates = new CapsuleTemplateCache();
+    /** headers of templates known to this manager, kept when the template itself is not loaded. */
+    private final Map<String, CapsuleTemplateHeader> headers = new HashMap<>();
+    /** headers built from the loaded templates, by name. */
+    private final Map<String, LoadedHeader> loadedHeaders = new HashMap<>();
+    /** lowercase names of the template files at the root of the base folder, listed once on first use. */
+    @Nullable
+    private Set<String> fileIndex = null;
+    /** names already looked up and found nowhere. */
+    private final Set<String> missingNames = new HashSet<>();
+    /** names whose content is a shared template, with the hash of that content. */
+    private final Map<String, String> sharedNames = new HashMap<>();
+    /** names that got their own copy of a shared template, the reference file is deleted when they are written. */
+    private final Set<String> detachedNames = new HashSet<>();
+    /** revision of the content of each name, bumped each time the content is read, written or removed. */
+    private final Map<String, Integer> revisions = new HashMap<>();
+    /** encoded previews by name, shared by every player holding a capsule of that name. In access order. */
+    private final Map<String, Preview> previews = new LinkedHashMap<>(16, 0.75f, true);
     /** the folder in the assets folder where the structure templates are found. */
     private final String baseFolder;
     private final DataFixer fixer;
+    /** told the name and new revision each time the content of a name is written or removed. */
+    @Nullable
+    private ObjIntConsumer<String> changeListener = null;
 
     public CapsuleTemplateManager(String p_i47239_1_, DataFixer p_i47239_2_)
     {
@@ -41,7 +86,8 @@ public class CapsuleTemplateManager
         if (template == null)
         {
             template = new CapsuleTemplate();
-            this.templates.put(id.getResourcePath(), template);
+            this.putTemplate(id.getResourcePath(), template);
+            this.missingNames.remove(id.getResourcePath());
         }
 
         return template;
@@ -51,26 +97,206 @@ public class CapsuleTemplateManager
     public CapsuleTemplate get(@Nullable MinecraftServer server, ResourceLocation templatePath)
     {
         String s = templatePath.getResourcePath();
+        CapsuleTemplate cached = this.templates.get(s);
 
-        if (this.templates.containsKey(s))
+        if (cached != null)
+        {
+            return cached;
+        }
+        else if (this.sharedNames.containsKey(s))
+        {
+            return this.get(server, getObjectLocation(this.sharedNames.get(s)));
+        }
+        else if (this.missingNames.contains(s))
         {
-            return (CapsuleTemplate)this.templates.get(s);
+            return null;
         }
         else
         {
-            if (server == null)
+            if (server == null || !this.mayExistInBaseFolder(s))
             {
                 this.readTemplateFromJar(templatePath);
             }
             else
             {
                 this.readTemplate(templatePath);
+                this.readOccupiedPositions(server, s);
+            }
+
+            if (this.sharedNames.containsKey(s))
+            {
+                return this.get(server, getObjectLocation(this.sharedNames.get(s)));
+            }
+            CapsuleTemplate template = this.templates.peek(s);
+            if (template == null)
+            {
+                this.missingNames.add(s);
+            }
+            return template;
+        }
+    }
+
+    /**
+     * Whether a template exists with this name, without loading it.
+     * Names at the root of the base folder are answered from the file index, the jar is not searched for them.
+     */
+    public boolean exists(@Nullable MinecraftServer server, ResourceLocation templatePath)
+    {
+        String s = templatePath.getResourcePath();
+        if (this.templates.containsKey(s) || this.headers.containsKey(s) || this.sharedNames.containsKey(s)) return true;
+        if (this.missingNames.contains(s)) return false;
+        if (server != null && !s.contains("/")) return this.mayExistInBaseFolder(s);
+        return this.get(server, templatePath) != null;
+    }
+
+    /**
+     * @return false if the name is known not to be a file of the base folder. Names in sub folders are not indexed.
+     */
+    private boolean mayExistInBaseFolder(String name)
+    {
+        if (name.contains("/")) return true;
+        if (this.fileIndex == null)
+        {
+            this.fileIndex = new HashSet<>();
+            String[] fileNames = new File(this.baseFolder).list();
+            if (fileNames != null)
+            {
+                for (String fileName : fileNames)
+                {
+                    String indexedName = getTemplateName(fileName);
+                    if (indexedName != null) this.fileIndex.add(indexedName);
+                }
+            }
+        }
+        return this.fileIndex.contains(name.toLowerCase(Locale.ROOT));
+    }
+
+    @Nullable
+    private static String getTemplateName(String fileName)
+    {
+        for (String extension : new String[]{".nbt", CapsuleTemplateFormat.EXTENSION, ".schematic", REF_EXTENSION})
+        {
+            if (fileName.endsWith(extension))
+            {
+                return fileName.substring(0, fileName.length() - extension.length()).toLowerCase(Locale.ROOT);
             }
+        }
+        return null;
+    }
 
-            return this.templates.containsKey(s) ? (CapsuleTemplate)this.templates.get(s) : null;
+    private void indexWrittenFile(String name)
+    {
+        this.missingNames.remove(name);
+        if (this.fileIndex != null && !name.contains("/"))
+        {
+            this.fileIndex.add(name.toLowerCase(Locale.ROOT));
         }
     }
 
+    /**
+     * Forget the file index and the names known as missing, ie. after files were added to the folder by hand.
+     */
+    public void invalidateIndex()
+    {
+        this.fileIndex = null;
+        this.missingNames.clear();
+    }
+
+    /**
+     * Get the template in order to modify it. If the content is shared with other names, this name gets its own copy first.
+     */
+    public CapsuleTemplate getMutableTemplate(@Nullable MinecraftServer server, ResourceLocation id)
+    {
+        String s = id.getResourcePath();
+        CapsuleTemplate template = this.getTemplate(server, id);
+        if (this.sharedNames.remove(s) != null)
+        {
+            template = template.snapshot();
+            this.putTemplate(s, template);
+            this.headers.remove(s);
+            this.detachedNames.add(s);
+        }
+        return template;
+    }
+
+    /**
+     * Metadata of the template. Blocks are not materialized if the template is not loaded and was saved as a .capsule file.
+     */
+    @Nullable
+    public CapsuleTemplateHeader getHeader(@Nullable MinecraftServer server, ResourceLocation templatePath)
+    {
+        String s = templatePath.getResourcePath();
+        CapsuleTemplate loaded = this.templates.peek(s);
+
+        if (loaded != null)
+        {
+            // built once per revision of the loaded template, it goes through all the blocks
+            int revision = this.revisions.getOrDefault(s, 0);
+            LoadedHeader loadedHeader = this.loadedHeaders.get(s);
+            if (loadedHeader == null || loadedHeader.revision != revision || loadedHeader.blocksRevision != loaded.getBlocksRevision())
+            {
+                loadedHeader = new LoadedHeader(revision, loaded.getBlocksRevision(), CapsuleTemplateHeader.of(loaded));
+                this.loadedHeaders.put(s, loadedHeader);
+            }
+            return loadedHeader.header;
+        }
+
+        CapsuleTemplateHeader header = this.getFileHeader(templatePath);
+        if (header == null)
+        {
+            // other formats have no header, the whole template is needed
+            CapsuleTemplate template = this.get(server, templatePath);
+            if (template == null)
+            {
+                return null;
+            }
+            header = CapsuleTemplateHeader.of(template);
+            this.headers.put(s, header);
+        }
+        return header;
+    }
+
+    /**
+     * Header known for the template, or read from its .capsule file without reading the body.
+     * The header of a reference is the one of the shared template.
+     * The template is never loaded: null if the template is not a .capsule file or doesn't exist.
+     */
+    @Nullable
+    public CapsuleTemplateHeader getFileHeader(ResourceLocation templatePath)
+    {
+        String s = templatePath.getResourcePath();
+        CapsuleTemplateHeader header = this.headers.get(s);
+        if (header != null || this.missingNames.contains(s) || !this.mayExistInBaseFolder(s))
+        {
+            return header;
+        }
+
+        File file1 = new File(this.baseFolder, s + ".nbt");
+        File capsuleFile = new File(this.baseFolder, s + CapsuleTemplateFormat.EXTENSION);
+        if (CapsuleTemplateWriter.getPending(capsuleFile) != null || CapsuleTemplateWriter.getPending(file1) != null)
+        {
+            return null;
+        }
+        File refFile = new File(this.baseFolder, s + REF_EXTENSION);
+        if (this.sharedNames.containsKey(s) || refFile.exists() && this.readTemplateRef(s, refFile))
+        {
+            return this.getFileHeader(getObjectLocation(this.sharedNames.get(s)));
+        }
+        if (capsuleFile.exists())
+        {
+            try (InputStream inputstream = new FileInputStream(capsuleFile))
+            {
+                header = CapsuleTemplateFormat.readHeader(inputstream);
+                this.headers.put(s, header);
+            }
+            catch (Throwable e)
+            {
+                LOGGER.error("Couldn't read capsule template header " + capsuleFile.getPath(), e);
+            }
+        }
+        return header;
+    }
+
     /**
      * This reads a structure template from the given location and stores it.
      * This first attempts get the template from an external folder.
@@ -80,6 +306,27 @@ public class CapsuleTemplateManager
     {
         String s = server.getResourcePath();
         File file1 = new File(this.baseFolder, s + ".nbt");
+        File capsuleFile = new File(this.baseFolder, s + CapsuleTemplateFormat.EXTENSION);
+
+        // a write still in queue is more recent than the file content
+        CapsuleTemplate pending = CapsuleTemplateWriter.getPending(capsuleFile);
+        if (pending == null) pending = CapsuleTemplateWriter.getPending(file1);
+        if (pending != null)
+        {
+            this.putTemplate(s, pending.snapshot());
+            return true;
+        }
+
+        File refFile = new File(this.baseFolder, s + REF_EXTENSION);
+        if (refFile.exists())
+        {
+            return this.readTemplateRef(s, refFile);
+        }
+
+        if (capsuleFile.exists())
+        {
+            return this.readTemplateFromCapsuleFile(s, capsuleFile);
+        }
 
         if (!file1.exists())
         {
@@ -110,6 +357,71 @@ public class CapsuleTemplateManager
         }
     }
 
+    /**
+     * reads the content hash of a shared template
+     */
+    private boolean readTemplateRef(String id, File file)
+    {
+        try
+        {
+            String hash = new String(java.nio.file.Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+            if (!hash.matches("[0-9a-f]+"))
+            {
+                LOGGER.error("Invalid capsule template reference " + file.getPath());
+                return false;
+            }
+            this.sharedNames.put(id, hash);
+            return true;
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Couldn't read capsule template reference " + file.getPath(), e);
+            return false;
+        }
+    }
+
+    /**
+     * reads the occupied positions file of a deployed capsule, if any
+     */
+    private void readOccupiedPositions(MinecraftServer server, String id)
+    {
+        File occupiedFile = new File(this.baseFolder, id + OCCUPIED_EXTENSION);
+        if (!occupiedFile.exists()) return;
+
+        // deploy state belongs to the capsule, not to the shared content
+        CapsuleTemplate template = this.sharedNames.containsKey(id) ? this.getMutableTemplate(server, new ResourceLocation(id)) : this.templates.peek(id);
+        if (template == null) return;
+        try (InputStream inputstream = new FileInputStream(occupiedFile))
+        {
+            NBTTagCompound nbt = CompressedStreamTools.readCompressed(inputstream);
+            template.readOccupiedPositions(nbt.getTagList("capsule_occupiedSources", 10));
+            this.templates.reweigh(id);
+        }
+        catch (Throwable e)
+        {
+            LOGGER.error("Couldn't read capsule occupied positions " + occupiedFile.getPath(), e);
+        }
+    }
+
+    /**
+     * reads a template from a compact .capsule file
+     */
+    private boolean readTemplateFromCapsuleFile(String id, File file)
+    {
+        try (InputStream inputstream = new FileInputStream(file))
+        {
+            CapsuleTemplate template = new CapsuleTemplate();
+            CapsuleTemplateFormat.read(template, inputstream);
+            this.putTemplate(id, template);
+            return true;
+        }
+        catch (Throwable e)
+        {
+            LOGGER.error("Couldn't read capsule template " + file.getPath(), e);
+            return false;
+        }
+    }
+
     /**
      * reads a template from the minecraft jar
      */
@@ -153,17 +465,31 @@ public class CapsuleTemplateManager
 
         CapsuleTemplate template = new CapsuleTemplate();
         template.read(this.fixer.process(FixTypes.STRUCTURE, nbttagcompound));
-        this.templates.put(id, template);
+        this.putTemplate(id, template);
     }
 
     /**
-     * writes the template to an external folder
+     * writes the template to an external folder, using the configured file format.
+     * The file is written in background by CapsuleTemplateWriter, the in-memory template remains the reference until then.
      */
     public boolean writeTemplate(@Nullable MinecraftServer server, ResourceLocation id)
+    {
+        return this.writeTemplate(server, id, Config.templateFileFormat);
+    }
+
+    /**
+     * @param format "capsule" for the compact format, otherwise "nbt" for the structure block format.
+     */
+    public boolean writeTemplate(@Nullable MinecraftServer server, ResourceLocation id, String format)
     {
         String s = id.getResourcePath();
 
-        if (server != null && this.templates.containsKey(s))
+        if (server != null && this.sharedNames.containsKey(s))
+        {
+            // unchanged shared content, already stored
+            return true;
+        }
+        else if (server != null && this.templates.containsKey(s))
         {
             File file1 = new File(this.baseFolder);
 
@@ -179,39 +505,398 @@ public class CapsuleTemplateManager
                 return false;
             }
 
-            File file2 = new File(file1, s + ".nbt");
-            CapsuleTemplate template = (CapsuleTemplate)this.templates.get(s);
-            OutputStream outputstream = null;
-            boolean flag;
-
+            CapsuleTemplate template = this.templates.peek(s);
+            boolean compactFormat = FORMAT_CAPSULE.equals(format) && CapsuleTemplateFormat.canWrite(template);
+            File file2 = new File(file1, s + (compactFormat ? CapsuleTemplateFormat.EXTENSION : ".nbt"));
+            if (!file2.getParentFile().isDirectory() && !file2.getParentFile().mkdirs())
+            {
+                return false;
+            }
             try
             {
-                NBTTagCompound nbttagcompound = template.writeToNBT(new NBTTagCompound());
-                outputstream = new FileOutputStream(file2);
-                CompressedStreamTools.writeCompressed(nbttagcompound, outputstream);
-                flag = true;
+                CapsuleTemplateWriter.enqueue(file2, template);
+                // the written file doesn't contain the occupied positions anymore
+                template.occupiedPositionsInFile = false;
+                this.templates.reweigh(s);
+                this.bumpRevision(s);
+                this.notifyChanged(s);
+                this.headers.remove(s);
+                this.indexWrittenFile(s);
+                if (this.detachedNames.remove(s))
+                {
+                    // the written file replaces the reference to the shared template
+                    java.nio.file.Files.deleteIfExists(new File(file1, s + REF_EXTENSION).toPath());
+                }
+                return this.writeOccupiedPositions(server, id);
             }
             catch (Throwable var13)
             {
                 LOGGER.error(var13);
-                flag = false;
+                return false;
             }
-            finally
+        }
+        else
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Store the template as a reference to a content shared by every template having the same content.
+     * The content is stored and kept in memory once. The given template must not be modified afterward,
+     * use {@link #getMutableTemplate} to get a modifiable copy.
+     */
+    public boolean writeSharedTemplate(@Nullable MinecraftServer server, ResourceLocation id, CapsuleTemplate template)
+    {
+        String s = id.getResourcePath();
+        if (server == null) return false;
+        if (template.occupiedPositions != null || !CapsuleTemplateFormat.canWrite(template))
+        {
+            // not shareable, store it as a regular template
+            this.putTemplate(s, template);
+            this.sharedNames.remove(s);
+            this.detachedNames.add(s);
+            return this.writeTemplate(server, id);
+        }
+
+        String hash;
+        try
+        {
+            hash = CapsuleTemplateFormat.contentHash(template);
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Couldn't hash capsule template " + s, e);
+            return false;
+        }
+
+        ResourceLocation objectLocation = getObjectLocation(hash);
+        String objectName = objectLocation.getResourcePath();
+        if (!this.templates.containsKey(objectName))
+        {
+            this.putTemplate(objectName, template);
+            this.missingNames.remove(objectName);
+            File objectFile = new File(this.baseFolder, objectName + CapsuleTemplateFormat.EXTENSION);
+            if (!objectFile.exists() && CapsuleTemplateWriter.getPending(objectFile) == null
+                    && !this.writeTemplate(server, objectLocation, FORMAT_CAPSULE))
             {
-                IOUtils.closeQuietly(outputstream);
+                return false;
             }
+        }
 
-            return flag;
+        return this.writeReference(s, hash);
+    }
+
+    /**
+     * Store the template as a reference to the shared content having that hash, without reading that content.
+     * If this manager doesn't have the shared content yet, it is copied from the given file.
+     *
+     * @param contentFile file in the capsule format whose header has that hash, see {@link #getContentFile}
+     */
+    public boolean writeSharedReference(@Nullable MinecraftServer server, ResourceLocation id, String hash, File contentFile)
+    {
+        if (server == null) return false;
+        String objectName = getObjectLocation(hash).getResourcePath();
+        File objectFile = new File(this.baseFolder, objectName + CapsuleTemplateFormat.EXTENSION);
+        if (!this.templates.containsKey(objectName) && !objectFile.exists() && CapsuleTemplateWriter.getPending(objectFile) == null)
+        {
+            File tmpFile = new File(this.baseFolder, objectName + CapsuleTemplateFormat.EXTENSION + ".tmp");
+            try
+            {
+                java.nio.file.Files.createDirectories(objectFile.getParentFile().toPath());
+                java.nio.file.Files.copy(contentFile.toPath(), tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                CapsuleTemplateWriter.replaceFile(tmpFile, objectFile);
+            }
+            catch (IOException e)
+            {
+                LOGGER.error("Couldn't copy capsule template " + contentFile.getPath() + " to " + objectFile.getPath(), e);
+                return false;
+            }
+            this.missingNames.remove(objectName);
         }
-        else
+        return this.writeReference(id.getResourcePath(), hash);
+    }
+
+    /**
+     * @return the .capsule file holding the current content of the template, the shared one for a reference.
+     * Null if the content is in another format, not written yet or doesn't exist.
+     */
+    @Nullable
+    public File getContentFile(ResourceLocation id)
+    {
+        String s = id.getResourcePath();
+        if (CapsuleTemplateWriter.getPending(new File(this.baseFolder, s + ".nbt")) != null) return null;
+        String hash = this.sharedNames.get(s);
+        File file = new File(this.baseFolder, (hash != null ? getObjectLocation(hash).getResourcePath() : s) + CapsuleTemplateFormat.EXTENSION);
+        if (!file.exists() || CapsuleTemplateWriter.getPending(file) != null) return null;
+        return file;
+    }
+
+    /**
+     * Replace the content of that name by a reference to a shared template.
+     */
+    private boolean writeReference(String s, String hash)
+    {
+        File file1 = new File(this.baseFolder, s + ".nbt");
+        File capsuleFile = new File(this.baseFolder, s + CapsuleTemplateFormat.EXTENSION);
+        File refFile = new File(this.baseFolder, s + REF_EXTENSION);
+        File tmpFile = new File(this.baseFolder, s + REF_EXTENSION + ".tmp");
+        try
         {
+            java.nio.file.Files.createDirectories(refFile.getParentFile().toPath());
+            java.nio.file.Files.write(tmpFile.toPath(), hash.getBytes(StandardCharsets.UTF_8));
+            CapsuleTemplateWriter.replaceFile(tmpFile, refFile);
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Couldn't write capsule template reference " + refFile.getPath(), e);
             return false;
         }
+        // previous content of that name is replaced by the reference
+        CapsuleTemplateWriter.discard(file1);
+        CapsuleTemplateWriter.discard(capsuleFile);
+        file1.delete();
+        capsuleFile.delete();
+
+        this.templates.remove(s);
+        this.headers.remove(s);
+        this.detachedNames.remove(s);
+        this.sharedNames.put(s, hash);
+        this.bumpRevision(s);
+        this.notifyChanged(s);
+        this.indexWrittenFile(s);
+        return true;
+    }
+
+    /**
+     * Save the occupied positions of a deployed template, or delete them if the template is not deployed.
+     * Unlike {@link #writeTemplate}, the template content is not written again, unless its file still holds
+     * occupied positions from an older version: they would be read again otherwise.
+     */
+    public boolean writeOccupiedPositions(@Nullable MinecraftServer server, ResourceLocation id)
+    {
+        String s = id.getResourcePath();
+        CapsuleTemplate template = this.templates.peek(s);
+        if (server == null || template == null) return false;
+
+        if (template.occupiedPositions == null && template.occupiedPositionsInFile)
+        {
+            return this.writeTemplate(server, id);
+        }
+
+        File occupiedFile = new File(this.baseFolder, s + OCCUPIED_EXTENSION);
+        try
+        {
+            if (template.occupiedPositions == null)
+            {
+                java.nio.file.Files.deleteIfExists(occupiedFile.toPath());
+            }
+            else
+            {
+                File tmpFile = new File(this.baseFolder, s + OCCUPIED_EXTENSION + ".tmp");
+                try (OutputStream outputstream = new FileOutputStream(tmpFile))
+                {
+                    NBTTagCompound nbt = new NBTTagCompound();
+                    nbt.setTag("capsule_occupiedSources", template.writeOccupiedPositions());
+                    CompressedStreamTools.writeCompressed(nbt, outputstream);
+                }
+                CapsuleTemplateWriter.replaceFile(tmpFile, occupiedFile);
+            }
+            this.templates.reweigh(s);
+            return true;
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Couldn't write capsule occupied positions " + occupiedFile.getPath(), e);
+            return false;
+        }
+    }
+
+    private static ResourceLocation getObjectLocation(String hash)
+    {
+        return new ResourceLocation(OBJECTS_FOLDER + hash);
+    }
+
+    /**
+     * Delete the shared templates no longer referenced by any name.
+     *
+     * @return number of shared templates deleted
+     */
+    public int deleteUnusedSharedTemplates()
+    {
+        File objectsFolder = new File(this.baseFolder, OBJECTS_FOLDER);
+        File[] objectFiles = objectsFolder.listFiles();
+        if (objectFiles == null) return 0;
+
+        Set<String> usedHashes = new HashSet<>(this.sharedNames.values());
+        try (Stream<Path> paths = java.nio.file.Files.walk(new File(this.baseFolder).toPath()))
+        {
+            paths.filter(path -> path.toString().endsWith(REF_EXTENSION))
+                    .forEach(path -> {
+                        try
+                        {
+                            usedHashes.add(new String(java.nio.file.Files.readAllBytes(path), StandardCharsets.UTF_8).trim());
+                        }
+                        catch (IOException e)
+                        {
+                            LOGGER.error("Couldn't read capsule template reference " + path, e);
+                        }
+                    });
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Couldn't list capsule template references in " + this.baseFolder, e);
+            return 0;
+        }
+
+        int deleted = 0;
+        for (File objectFile : objectFiles)
+        {
+            String hash = getTemplateName(objectFile.getName());
+            if (hash == null || usedHashes.contains(hash) || CapsuleTemplateWriter.getPending(objectFile) != null) continue;
+            if (objectFile.delete())
+            {
+                this.remove(getObjectLocation(hash));
+                deleted++;
+            }
+        }
+        return deleted;
     }
 
     public void remove(ResourceLocation templatePath)
     {
         this.templates.remove(templatePath.getResourcePath());
+        this.headers.remove(templatePath.getResourcePath());
+        this.sharedNames.remove(templatePath.getResourcePath());
+        this.detachedNames.remove(templatePath.getResourcePath());
+        this.bumpRevision(templatePath.getResourcePath());
+        this.previews.remove(templatePath.getResourcePath());
+        this.loadedHeaders.remove(templatePath.getResourcePath());
+        this.notifyChanged(templatePath.getResourcePath());
+    }
+
+    private void putTemplate(String name, CapsuleTemplate template)
+    {
+        this.templates.put(name, template);
+        this.bumpRevision(name);
+    }
+
+    private void bumpRevision(String name)
+    {
+        this.revisions.merge(name, 1, Integer::sum);
+    }
+
+    private void notifyChanged(String name)
+    {
+        if (this.changeListener != null)
+        {
+            this.changeListener.accept(name, this.revisions.getOrDefault(name, 0));
+        }
+    }
+
+    public void setChangeListener(@Nullable ObjIntConsumer<String> changeListener)
+    {
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Revision of the content of that name, changes each time the template is read, written or removed.
+     */
+    public int getRevision(ResourceLocation templatePath)
+    {
+        return this.revisions.getOrDefault(templatePath.getResourcePath(), 0);
+    }
+
+    /**
+     * Template blocks merged into boxes, as shown by the client preview, encoded as sent to the clients (see {@link CapsulePreview}).
+     * The preview is computed and encoded once per revision of the template by the given executor, only the encoded bytes are kept
+     * and shared by every player asking for it. Names sharing a content share its preview.
+     * Must be called from the server thread, the template blocks are copied before being handed to the executor.
+     */
+    public CompletableFuture<byte[]> getEncodedPreview(@Nullable MinecraftServer server, ResourceLocation templatePath, Executor executor)
+    {
+        CapsuleTemplate template = this.getTemplate(server, templatePath);
+        String hash = this.sharedNames.get(templatePath.getResourcePath());
+        String s = hash != null ? getObjectLocation(hash).getResourcePath() : templatePath.getResourcePath();
+        int revision = this.revisions.getOrDefault(s, 0);
+
+        Preview preview = this.previews.get(s);
+        // the blocks revision covers a template modified in place but not written yet
+        if (preview == null || preview.revision != revision || preview.blocksRevision != template.getBlocksRevision()
+                || preview.encoded.isCompletedExceptionally())
+        {
+            List<Template.BlockInfo> blocks = new ArrayList<>(template.blocks);
+            CompletableFuture<byte[]> future;
+            try
+            {
+                future = CompletableFuture.supplyAsync(() -> computePreview(blocks), executor);
+            }
+            catch (RejectedExecutionException e)
+            {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            preview = new Preview(revision, template.getBlocksRevision(), future);
+            this.previews.put(s, preview);
+            this.trimPreviews();
+        }
+        return preview.encoded;
+    }
+
+    private static byte[] computePreview(List<Template.BlockInfo> blocks)
+    {
+        List<Block> boxBlocks = new ArrayList<>();
+        List<AxisAlignedBB> boxes = Spacial.mergeVoxels(blocks, boxBlocks);
+        int[] blockIds = boxBlocks.stream().mapToInt(Block::getIdFromBlock).toArray();
+        try
+        {
+            return new CapsulePreview(boxes, blockIds).getEncoded();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Forget the least recently used previews until they fit in the count and size bounds. Previews still being computed weigh nothing.
+     */
+    private void trimPreviews()
+    {
+        long bytes = 0;
+        for (Preview preview : this.previews.values())
+        {
+            bytes += preview.weight();
+        }
+        Iterator<Preview> it = this.previews.values().iterator();
+        while (it.hasNext() && (this.previews.size() > MAX_PREVIEWS || bytes > MAX_PREVIEW_BYTES))
+        {
+            bytes -= it.next().weight();
+            it.remove();
+        }
+    }
+
+    /**
+     * Keep the template in memory for the given duration, ie. while a capsule is flying toward its deploy position.
+     */
+    public void pin(ResourceLocation templatePath, long durationMillis)
+    {
+        String hash = this.sharedNames.get(templatePath.getResourcePath());
+        this.templates.pin(hash != null ? getObjectLocation(hash).getResourcePath() : templatePath.getResourcePath(), durationMillis);
+    }
+
+    /**
+     * The template doesn't need to be kept in memory anymore, ie. the flying capsule landed.
+     */
+    public void unpin(ResourceLocation templatePath)
+    {
+        String hash = this.sharedNames.get(templatePath.getResourcePath());
+        this.templates.unpin(hash != null ? getObjectLocation(hash).getResourcePath() : templatePath.getResourcePath());
+    }
+
+    public CapsuleTemplateCache getCache()
+    {
+        return this.templates;
     }
 
     public boolean readTemplateFromSchematic(ResourceLocation server)
@@ -234,7 +919,7 @@ public class CapsuleTemplateManager
                 NBTTagCompound schematicNBT = CompressedStreamTools.readCompressed(inputstream);
                 CapsuleTemplate template = new CapsuleTemplate();
                 template.readSchematic(schematicNBT);
-                this.templates.put(s, template);
+                this.putTemplate(s, template);
                 flag = true;
             }
             catch (Throwable var10)
@@ -253,7 +938,7 @@ public class CapsuleTemplateManager
     public boolean deleteTemplate(@Nullable MinecraftServer server, ResourceLocation id) {
         String s = id.getResourcePath();
 
-        if (server != null && this.templates.containsKey(s)) {
+        if (server != null && (this.templates.containsKey(s) || this.sharedNames.containsKey(s))) {
             File file1 = new File(this.baseFolder);
 
             if (!file1.exists()) {
@@ -263,12 +948,101 @@ public class CapsuleTemplateManager
             }
 
             File file2 = new File(file1, s + ".nbt");
-            boolean deleted = file2.delete();
+            File capsuleFile = new File(file1, s + CapsuleTemplateFormat.EXTENSION);
+            CapsuleTemplateWriter.discard(file2);
+            CapsuleTemplateWriter.discard(capsuleFile);
+            boolean deleted = file2.delete() | capsuleFile.delete() | new File(file1, s + REF_EXTENSION).delete();
+            new File(file1, s + OCCUPIED_EXTENSION).delete();
             if (deleted) {
                 remove(id);
+                if (this.fileIndex != null && !new File(file1, s + ".schematic").exists()) {
+                    this.fileIndex.remove(s.toLowerCase(Locale.ROOT));
+                }
             }
             return deleted;
         }
         return false;
     }
-}
\ No newline at end of file
+
+    /**
+     * Rewrite all the templates of a sub folder in the given format.
+     *
+     * @param subFolder folder relative to this manager base folder, empty for the base folder itself.
+     * @param format "capsule" or "nbt"
+     * @return number of templates converted
+     */
+    public int convertTemplates(MinecraftServer server, String subFolder, String format)
+    {
+        String sourceExtension = FORMAT_CAPSULE.equals(format) ? ".nbt" : CapsuleTemplateFormat.EXTENSION;
+        Path basePath = new File(this.baseFolder).toPath();
+        File folder = new File(this.baseFolder, subFolder);
+        if (!folder.isDirectory()) return 0;
+
+        List<String> names = new ArrayList<>();
+        try (Stream<Path> paths = java.nio.file.Files.walk(folder.toPath()))
+        {
+            paths.filter(path -> path.toString().endsWith(sourceExtension))
+                    .forEach(path -> {
+                        String relative = basePath.relativize(path).toString().replace('\\', '/');
+                        // shared templates are always stored in compact format
+                        if (!relative.startsWith(OBJECTS_FOLDER))
+                        {
+                            names.add(relative.substring(0, relative.length() - sourceExtension.length()));
+                        }
+                    });
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("Couldn't list templates in " + folder.getPath(), e);
+            return 0;
+        }
+
+        int converted = 0;
+        for (String name : names)
+        {
+            ResourceLocation location = new ResourceLocation(name);
+            if (this.get(server, location) != null && this.writeTemplate(server, location, format))
+            {
+                converted++;
+            }
+            else
+            {
+                LOGGER.warn("Template " + name + " could not be converted");
+            }
+        }
+        return converted;
+    }
+
+    private static class LoadedHeader
+    {
+        private final int revision;
+        private final int blocksRevision;
+        private final CapsuleTemplateHeader header;
+
+        private LoadedHeader(int revision, int blocksRevision, CapsuleTemplateHeader header)
+        {
+            this.revision = revision;
+            this.blocksRevision = blocksRevision;
+            this.header = header;
+        }
+    }
+
+    private static class Preview
+    {
+        private final int revision;
+        private final int blocksRevision;
+        private final CompletableFuture<byte[]> encoded;
+
+        private Preview(int revision, int blocksRevision, CompletableFuture<byte[]> encoded)
+        {
+            this.revision = revision;
+            this.blocksRevision = blocksRevision;
+            this.encoded = encoded;
+        }
+
+        private int weight()
+        {
+            return this.encoded.isDone() && !this.encoded.isCompletedExceptionally() ? this.encoded.join().length : 0;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package capsule.structure;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for template files. The in-memory template stays authoritative, the disk copy is written
+ * by a background thread from a snapshot taken when the write was requested.
+ * A newer write of the same file replaces the one still waiting in queue, and files are replaced atomically.
+ *
+ * @author Lythom
+ */
+public class CapsuleTemplateWriter {
+
+    protected static final Logger LOGGER = LogManager.getLogger(CapsuleTemplateWriter.class);
+
+    /**
+     * When that many files are waiting, the server thread waits for the writer to catch up before queueing the next ones.
+     */
+    private static final int MAX_QUEUED_WRITES = 256;
+    private static final long FLUSH_TIMEOUT_SECONDS = 60;
+
+    private static final Object lock = new Object();
+    private static final Map<File, CapsuleTemplate> queued = new HashMap<>();
+    private static final Map<File, CapsuleTemplate> writing = new HashMap<>();
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            1, 1,
+            0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(MAX_QUEUED_WRITES),
+            runnable -> {
+                Thread thread = new Thread(runnable, "Capsule template writer");
+                thread.setDaemon(true);
+                return thread;
+            },
+            CapsuleTemplateWriter::waitForRoom
+    );
+
+    /**
+     * Queue the template to be written in file. The template is snapshotted immediately so it can keep being used and modified.
+     */
+    public static void enqueue(File file, CapsuleTemplate template) {
+        CapsuleTemplate snapshot = template.snapshot();
+        boolean schedule;
+        synchronized (lock) {
+            schedule = queued.put(file, snapshot) == null;
+        }
+        // if a write of the same file was already waiting, it will pick the newest snapshot
+        if (schedule) {
+            executor.execute(() -> writeQueued(file));
+        }
+    }
+
+    /**
+     * @return the content that will be written in the file, if a write is queued or in progress. Disk content is outdated in that case.
+     */
+    @Nullable
+    public static CapsuleTemplate getPending(File file) {
+        synchronized (lock) {
+            CapsuleTemplate template = queued.get(file);
+            return template != null ? template : writing.get(file);
+        }
+    }
+
+    /**
+     * Drop any queued write of this file, and wait for a write in progress to end.
+     */
+    public static void discard(File file) {
+        boolean inProgress;
+        synchronized (lock) {
+            queued.remove(file);
+            inProgress = writing.containsKey(file);
+            lock.notifyAll();
+        }
+        if (inProgress) flush();
+    }
+
+    /**
+     * @return number of template files waiting to be written or being written.
+     */
+    public static int getQueueDepth() {
+        synchronized (lock) {
+            return queued.size() + writing.size();
+        }
+    }
+
+    /**
+     * Block until every write requested so far is on disk.
+     */
+    public static void flush() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(FLUSH_TIMEOUT_SECONDS);
+        synchronized (lock) {
+            while (!queued.isEmpty() || !writing.isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    LOGGER.error("Capsule templates could not all be written, " + (queued.size() + writing.size()) + " template(s) still pending.");
+                    return;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * The queue is full: block the caller until the writer takes the next write. Writes are never run by the caller,
+     * so a file is only ever written by the writer thread.
+     */
+    private static void waitForRoom(Runnable task, ThreadPoolExecutor executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                executor.getQueue().put(task);
+                break;
+            } catch (InterruptedException e) {
+                // the snapshot is already in queued, its task must not be lost
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private static void writeQueued(File file) {
+        CapsuleTemplate template;
+        synchronized (lock) {
+            template = queued.remove(file);
+            if (template == null) return;
+            writing.put(file, template);
+        }
+        try {
+            writeToFile(template, file);
+        } catch (Throwable e) {
+            LOGGER.error("Error while writing capsule template " + file.getPath(), e);
+        } finally {
+            synchronized (lock) {
+                writing.remove(file, template);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private static void writeToFile(CapsuleTemplate template, File file) throws IOException {
+        boolean compactFormat = file.getName().endsWith(CapsuleTemplateFormat.EXTENSION);
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (OutputStream outputstream = new FileOutputStream(tmpFile)) {
+            if (compactFormat) {
+                CapsuleTemplateFormat.write(template, outputstream);
+            } else {
+                NBTTagCompound nbt = template.writeToNBT(new NBTTagCompound());
+                // occupied positions have their own file, see CapsuleTemplateManager#writeOccupiedPositions
+                nbt.removeTag("capsule_occupiedSources");
+                CompressedStreamTools.writeCompressed(nbt, outputstream);
+            }
+        }
+        replaceFile(tmpFile, file);
+
+        // the same template saved in the other format is now outdated
+        String name = file.getName();
+        File otherFormatFile = compactFormat
+                ? new File(file.getParentFile(), name.substring(0, name.length() - CapsuleTemplateFormat.EXTENSION.length()) + ".nbt")
+                : new File(file.getParentFile(), name.substring(0, name.length() - ".nbt".length()) + CapsuleTemplateFormat.EXTENSION);
+        if (otherFormatFile.exists() && getPending(otherFormatFile) == null && !otherFormatFile.delete()) {
+            LOGGER.warn("Outdated capsule template " + otherFormatFile.getPath() + " could not be deleted.");
+        }
+    }
+
+    /**
+     * Replace the file by the temporary file, atomically when the file system supports it.
+     */
+    static void replaceFile(File tmpFile, File file) throws IOException {
+        try {
+            java.nio.file.Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            java.nio.file.Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}